@@ -0,0 +1,148 @@
+/**
+ * Parses and formats cell addresses (e.g., "A0", "AA17", "XFD1048575"), and packs a coordinate into a long.
+ * A column is written in bijective base 26 (A..Z, AA..ZZ, AAA..ZZZ), a row as a non negative decimal number.
+ * Parsing works on any part of a CharSequence and allocates nothing, its cost is bounded by the
+ * maximal address length (3 letters and 9 digits).
+ */
+public final class CellAddress {
+    /** The number of columns of a classic sheet (A..Z), any sheet accepts at least these columns. */
+    public static final int CLASSIC_WIDTH = Ex2Utils.ABC.length;
+    /** The number of rows of a classic sheet (0..99), any sheet accepts at least these rows. */
+    public static final int CLASSIC_HEIGHT = 100;
+    /** The number of columns which can be addressed (A..ZZZ). */
+    public static final int MAX_WIDTH = 26 + 26 * 26 + 26 * 26 * 26;
+    /** The number of rows which can be addressed. */
+    public static final int MAX_HEIGHT = 1_000_000_000;
+    /** The result of parsing an invalid address. */
+    public static final long INVALID = -1;
+
+    private CellAddress() {
+    }
+
+    /**
+     * Packs an x,y coordinate into a single long.
+     *
+     * @param x the column index (non negative).
+     * @param y the row index (non negative).
+     * @return the packed coordinate.
+     */
+    public static long pack(int x, int y) {
+        return ((long) x << 32) | (y & 0xffffffffL);
+    }
+
+    /**
+     * @param coordinate a packed coordinate.
+     * @return its column index.
+     */
+    public static int x(long coordinate) {
+        return (int) (coordinate >>> 32);
+    }
+
+    /**
+     * @param coordinate a packed coordinate.
+     * @return its row index.
+     */
+    public static int y(long coordinate) {
+        return (int) coordinate;
+    }
+
+    /**
+     * Parses the address in [from, to) of the given characters (upper case letters followed by digits).
+     *
+     * @param s the characters.
+     * @param from the index of the first letter.
+     * @param to the index after the last digit.
+     * @param width the number of valid columns.
+     * @param height the number of valid rows.
+     * @return the packed coordinate, or INVALID if the range is not an address within width x height.
+     */
+    public static long parse(CharSequence s, int from, int to, int width, int height) {
+        int i = from, col = 0;
+        while (i < to && i - from < 3) {
+            char c = s.charAt(i);
+            if (c < 'A' || c > 'Z') {
+                break;
+            }
+            col = col * 26 + (c - 'A' + 1);
+            i++;
+        }
+        if (i == from || i == to || col > width) {
+            return INVALID;
+        }
+        long row = 0;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return INVALID;
+            }
+            row = row * 10 + (c - '0');
+            if (row >= height) {
+                return INVALID;
+            }
+        }
+        return pack(col - 1, (int) row);
+    }
+
+    /**
+     * Parses an address within the maximal dimensions.
+     *
+     * @param s the address.
+     * @return the packed coordinate, or INVALID.
+     */
+    public static long parse(CharSequence s) {
+        return s == null ? INVALID : parse(s, 0, s.length(), MAX_WIDTH, MAX_HEIGHT);
+    }
+
+    /**
+     * Appends the name of a column (e.g., 0 -> "A", 26 -> "AA") to the given builder.
+     *
+     * @param sb the builder.
+     * @param x the column index.
+     */
+    public static void appendColumn(StringBuilder sb, int x) {
+        int start = sb.length();
+        for (int n = x + 1; n > 0; n = (n - 1) / 26) {
+            sb.insert(start, (char) ('A' + (n - 1) % 26));
+        }
+    }
+
+    /**
+     * Returns the name of a column (e.g., 0 -> "A", 26 -> "AA").
+     *
+     * @param x the column index.
+     * @return the column name.
+     */
+    public static String columnName(int x) {
+        if (x < Ex2Utils.ABC.length) {
+            return Ex2Utils.ABC[x];
+        }
+        StringBuilder sb = new StringBuilder(3);
+        appendColumn(sb, x);
+        return sb.toString();
+    }
+
+    /**
+     * Appends the address of an x,y coordinate (e.g., "AA17") to the given builder.
+     *
+     * @param sb the builder.
+     * @param x the column index.
+     * @param y the row index.
+     */
+    public static void append(StringBuilder sb, int x, int y) {
+        appendColumn(sb, x);
+        sb.append(y);
+    }
+
+    /**
+     * Returns the address of an x,y coordinate (e.g., "AA17").
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return the address.
+     */
+    public static String format(int x, int y) {
+        StringBuilder sb = new StringBuilder(8);
+        append(sb, x, y);
+        return sb.toString();
+    }
+}
@@ -1,17 +1,46 @@
 /**
  * Represents a cell entry with an index in a spreadsheet.
- * The index is validated and converted to 2D coordinates.
+ * The index is validated and converted to 2D coordinates (see CellAddress).
  */
 public class CellEntry implements Index2D {
     private String index;
+    // the coordinate of an entry made from x,y, its index is formatted only when asked for
+    private int x, y;
+    private final int width, height;
 
     /**
-     * Constructs a CellEntry with a given index.
+     * Constructs a CellEntry with a given index, valid within the classic 26x100 sheet.
      *
      * @param index the cell index (e.g., "A1", "B2").
      */
     public CellEntry(String index) {
+        this(index, CellAddress.CLASSIC_WIDTH, CellAddress.CLASSIC_HEIGHT);
+    }
+
+    /**
+     * Constructs a CellEntry with a given index, valid within the given dimensions.
+     *
+     * @param index the cell index (e.g., "A1", "AB20").
+     * @param width the number of valid columns.
+     * @param height the number of valid rows.
+     */
+    public CellEntry(String index, int width, int height) {
         this.index = index;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Constructs a CellEntry of a given coordinate.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     */
+    public CellEntry(int x, int y) {
+        this.x = x;
+        this.y = y;
+        this.width = Math.max(CellAddress.CLASSIC_WIDTH, x + 1);
+        this.height = Math.max(CellAddress.CLASSIC_HEIGHT, y + 1);
     }
 
     /**
@@ -20,6 +49,9 @@ public class CellEntry implements Index2D {
      * @return the index as a string.
      */
     public String getIndex() {
+        if (index == null) {
+            index = CellAddress.format(x, y);
+        }
         return index;
     }
 
@@ -35,29 +67,17 @@ public class CellEntry implements Index2D {
     /**
      * Validates if the cell index is valid based on specific rules:
      * - The index is not null or empty.
-     * - The index length is between 2 and 3 characters.
-     * - The first character is a valid letter (A-Z).
-     * - The numeric part of the index is between 0 and 99.
+     * - It starts with 1 to 3 letters (A-Z), a column within the valid columns.
+     * - The rest is a number within the valid rows (0 to 99 by default).
      *
      * @return true if the index is valid, false otherwise.
      */
     @Override
     public boolean isValid() {
-        if (this.index == null || this.index.isEmpty()) {
-            return false;
-        }
-        if (this.index.length() > 3 || this.index.length() < 2) {
-            return false;
-        }
-        if (!isLetter(this.index.charAt(0))) {
-            return false;
-        }
-        try {
-            int num = Integer.parseInt(this.index.substring(1));
-            return num >= 0 && num <= 99;
-        } catch (NumberFormatException e) {
-            return false;
+        if (this.index == null) {
+            return x >= 0 && y >= 0 && x < width && y < height;
         }
+        return CellAddress.parse(this.index, 0, this.index.length(), width, height) != CellAddress.INVALID;
     }
 
     /**
@@ -67,27 +87,25 @@ public class CellEntry implements Index2D {
      */
     @Override
     public int getX() {
-        String[] arr = Ex2Utils.ABC;
-        for (int i = 0; i < arr.length; i++) {
-            if (String.valueOf(this.index.charAt(0)).equals(arr[i])) {
-                return i;
-            }
+        if (this.index == null) {
+            return x;
         }
-        return -1;
+        long c = CellAddress.parse(this.index);
+        return c == CellAddress.INVALID ? -1 : CellAddress.x(c);
     }
 
     /**
      * Gets the Y coordinate (row) of the cell based on its index.
      *
-     * @return the Y coordinate, or -1 if the numeric part is invalid.
+     * @return the Y coordinate, or -1 if the index is invalid.
      */
     @Override
     public int getY() {
-        try {
-            return Integer.parseInt(this.index.substring(1));
-        } catch (NumberFormatException e) {
-            return -1;
+        if (this.index == null) {
+            return y;
         }
+        long c = CellAddress.parse(this.index);
+        return c == CellAddress.INVALID ? -1 : CellAddress.y(c);
     }
 
     /**
@@ -97,7 +115,7 @@ public class CellEntry implements Index2D {
      */
     @Override
     public String toString() {
-        return this.index;
+        return getIndex();
     }
 
     /**
@@ -107,12 +125,6 @@ public class CellEntry implements Index2D {
      * @return true if the character is a letter, false otherwise.
      */
     public static boolean isLetter(char c) {
-        String s = String.valueOf(c);
-        for (String str : Ex2Utils.ABC) {
-            if (str.equals(s)) {
-                return true;
-            }
-        }
-        return false;
+        return c >= 'A' && c <= 'Z';
     }
 }
@@ -0,0 +1,35 @@
+/**
+ * Holds the cells of a spreadsheet by their x,y coordinate.
+ * A store may hold only some of the coordinates (see SparseCellStore),
+ * iterating over a store visits only the cells it holds, in no particular order.
+ */
+public interface CellStore extends Iterable<SCell> {
+    /**
+     * Returns the cell stored at the x,y coordinate.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return the cell, or null if no cell is stored at x,y.
+     */
+    SCell get(int x, int y);
+
+    /**
+     * Stores a cell at its own coordinate (SCell.getX(), SCell.getY()).
+     *
+     * @param cell the cell to store.
+     */
+    void put(SCell cell);
+
+    /**
+     * Removes a cell from the store (a store may keep all of its cells, and ignore this call).
+     *
+     * @param cell the cell to remove.
+     * @return true iff the cell was removed.
+     */
+    boolean remove(SCell cell);
+
+    /**
+     * @return the number of stored cells.
+     */
+    int size();
+}
@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/**
+ * The cells whose value or type changed in a single recalculation of a sheet (an edit, a batch, or a full eval()),
+ * so a renderer (or an exporter, or a replica) can react to exactly these cells instead of polling all of them.
+ * The cells are kept in the order they were evaluated, each one once.
+ */
+public final class ChangeSet {
+    /**
+     * A change set without any cell.
+     */
+    public static final ChangeSet EMPTY = new ChangeSet(new long[0], 0);
+    // the packed coordinates (see CellAddress.pack) of the changed cells
+    private final long[] cells;
+    private final int size;
+
+    private ChangeSet(long[] cells, int size) {
+        this.cells = cells;
+        this.size = size;
+    }
+
+    /**
+     * Returns the number of changed cells.
+     *
+     * @return the size of this change set.
+     */
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Returns the packed coordinate (see CellAddress.pack) of the i-th changed cell.
+     *
+     * @param i the index, in [0, size()).
+     * @return the coordinate.
+     */
+    public long get(int i) {
+        if (i < 0 || i >= size) {
+            throw new IndexOutOfBoundsException(i);
+        }
+        return cells[i];
+    }
+
+    public int getX(int i) {
+        return CellAddress.x(get(i));
+    }
+
+    public int getY(int i) {
+        return CellAddress.y(get(i));
+    }
+
+    /**
+     * Returns true iff the given cell changed (a linear scan).
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return true if the cell is in this change set.
+     */
+    public boolean contains(int x, int y) {
+        long key = CellAddress.pack(x, y);
+        for (int i = 0; i < size; i++) {
+            if (cells[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < size; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            CellAddress.append(sb, getX(i), getY(i));
+        }
+        return sb.append(']').toString();
+    }
+
+    /**
+     * Collects the changed cells of a recalculation. The cells of a parallel level may be added concurrently.
+     */
+    static class Builder {
+        private long[] cells = new long[16];
+        private int size = 0;
+
+        synchronized void add(long coordinate) {
+            if (size == cells.length) {
+                cells = Arrays.copyOf(cells, size * 2);
+            }
+            cells[size++] = coordinate;
+        }
+
+        /**
+         * Returns the cells collected so far, and starts over.
+         */
+        synchronized ChangeSet build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            ChangeSet ans = new ChangeSet(cells, size);
+            cells = new long[16];
+            size = 0;
+            return ans;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Holds the evaluated results of a spreadsheet in primitive columns: a double[] of values and a byte[]
+ * of type codes (Ex2Utils.TEXT, NUMBER, FORM, ERR_FORM_FORMAT, ERR_CYCLE_FORM) per column.
+ * A column is allocated the first time one of its cells is written, so empty columns cost nothing.
+ * The allocation is not synchronized: writers on several threads (a parallel level of Ex2Sheet.eval())
+ * must have their columns allocated (see allocate()) before they start.
+ * Scanning a column (e.g., summing a range) reads two contiguous arrays rather than a cell object per row.
+ */
+public class ColumnStore {
+    private final double[][] values;
+    private final byte[][] types;
+    private final int height;
+
+    /**
+     * Constructs an empty store for a spreadsheet of the given dimensions.
+     *
+     * @param width the number of columns.
+     * @param height the number of rows.
+     */
+    public ColumnStore(int width, int height) {
+        this.values = new double[width][];
+        this.types = new byte[width][];
+        this.height = height;
+    }
+
+    /**
+     * Stores the result of the x,y cell.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @param type the type code of the cell.
+     * @param value the numeric value of the cell (ignored unless the type is NUMBER or FORM).
+     */
+    public void set(int x, int y, int type, double value) {
+        allocate(x);
+        values[x][y] = value;
+        types[x][y] = (byte) type;
+    }
+
+    /**
+     * Forgets the result of the x,y cell (e.g., a cell dropped from a sparse sheet), as if nothing was stored for it.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     */
+    public void clear(int x, int y) {
+        if (types[x] != null) {
+            values[x][y] = 0;
+            types[x][y] = 0;
+        }
+    }
+
+    /**
+     * Allocates the arrays of a column, unless it already has them.
+     *
+     * @param x the column index.
+     */
+    public void allocate(int x) {
+        if (types[x] == null) {
+            values[x] = new double[height];
+            types[x] = new byte[height];
+        }
+    }
+
+    /**
+     * Returns the type code stored for the x,y cell.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return the type code, or 0 if nothing was stored for the cell.
+     */
+    public int getType(int x, int y) {
+        return types[x] == null ? 0 : types[x][y];
+    }
+
+    /**
+     * Returns the numeric value stored for the x,y cell.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return the value, or 0 if nothing was stored for the cell.
+     */
+    public double getValue(int x, int y) {
+        return values[x] == null ? 0 : values[x][y];
+    }
+
+    /**
+     * Returns the values of a whole column, for scanning.
+     *
+     * @param x the column index.
+     * @return the values by row, or null if nothing was stored in the column.
+     */
+    public double[] getValues(int x) {
+        return values[x];
+    }
+
+    /**
+     * Returns the type codes of a whole column, for scanning.
+     *
+     * @param x the column index.
+     * @return the type codes by row, or null if nothing was stored in the column.
+     */
+    public byte[] getTypes(int x) {
+        return types[x];
+    }
+}
@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * Finds the cells which are on a reference cycle, using Tarjan's strongly connected components algorithm.
+ * A cell is on a cycle iff its component has more than one cell, or it refers to itself.
+ * The search is iterative (no recursion), and runs in O(cells + edges) of the given sub-graph.
+ */
+public class CycleDetector {
+
+    /**
+     * Marks each of the given cells as on (or off) a cycle.
+     * Only the edges between the given cells are followed, so the collection must be closed
+     * under the cycles of interest (e.g., a changed cell with all of its dependents).
+     *
+     * @param cells the cells to check.
+     * @return the number of cells found on a cycle.
+     */
+    public static int markCycles(Collection<SCell> cells) {
+        int n = cells.size();
+        SCell[] nodes = cells.toArray(new SCell[0]);
+        HashMap<SCell, Integer> ids = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            ids.put(nodes[i], i);
+            nodes[i].setOnCycle(false);
+        }
+
+        int[] index = new int[n];
+        int[] low = new int[n];
+        boolean[] onStack = new boolean[n];
+        Arrays.fill(index, -1);
+        int[] stack = new int[n];
+        int sp = 0;
+        // the explicit DFS call stack: a node and the iterator over its dependents
+        int[] callStack = new int[n];
+        ArrayList<Iterator<SCell>> iters = new ArrayList<>();
+        int csp = 0;
+        int counter = 0, cyclic = 0;
+
+        for (int root = 0; root < n; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+            index[root] = low[root] = counter++;
+            stack[sp++] = root;
+            onStack[root] = true;
+            callStack[csp++] = root;
+            iters.add(nodes[root].getSuccessors().iterator());
+
+            while (csp > 0) {
+                int u = callStack[csp - 1];
+                Iterator<SCell> it = iters.get(csp - 1);
+                if (it.hasNext()) {
+                    Integer id = ids.get(it.next());
+                    if (id == null) {
+                        continue;
+                    }
+                    int v = id;
+                    if (index[v] == -1) {
+                        index[v] = low[v] = counter++;
+                        stack[sp++] = v;
+                        onStack[v] = true;
+                        callStack[csp++] = v;
+                        iters.add(nodes[v].getSuccessors().iterator());
+                    } else if (onStack[v]) {
+                        low[u] = Math.min(low[u], index[v]);
+                    }
+                } else {
+                    iters.remove(--csp);
+                    if (csp > 0) {
+                        int parent = callStack[csp - 1];
+                        low[parent] = Math.min(low[parent], low[u]);
+                    }
+                    if (low[u] == index[u]) {
+                        // pop the component of u
+                        int top = sp;
+                        int w;
+                        do {
+                            w = stack[--sp];
+                            onStack[w] = false;
+                        } while (w != u);
+                        int size = top - sp;
+                        if (size > 1 || nodes[u].getSuccessors().contains(nodes[u])) {
+                            for (int k = sp; k < top; k++) {
+                                nodes[stack[k]].setOnCycle(true);
+                            }
+                            cyclic += size;
+                        }
+                    }
+                }
+            }
+        }
+        return cyclic;
+    }
+}
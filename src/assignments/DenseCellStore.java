@@ -0,0 +1,72 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A cell store backed by a 2D array holding a cell for every coordinate.
+ * Cells are never removed from a dense store.
+ */
+public class DenseCellStore implements CellStore {
+    private final SCell[][] table;
+    private int size;
+
+    /**
+     * Constructs an empty store of the given dimensions.
+     *
+     * @param width the number of columns.
+     * @param height the number of rows.
+     */
+    public DenseCellStore(int width, int height) {
+        table = new SCell[width][height];
+    }
+
+    @Override
+    public SCell get(int x, int y) {
+        return table[x][y];
+    }
+
+    @Override
+    public void put(SCell cell) {
+        if (table[cell.getX()][cell.getY()] == null) {
+            size++;
+        }
+        table[cell.getX()][cell.getY()] = cell;
+    }
+
+    @Override
+    public boolean remove(SCell cell) {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Iterator<SCell> iterator() {
+        return new Iterator<SCell>() {
+            private int i = 0, j = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (i < table.length && (j >= table[i].length || table[i][j] == null)) {
+                    if (j >= table[i].length) {
+                        i++;
+                        j = 0;
+                    } else {
+                        j++;
+                    }
+                }
+                return i < table.length;
+            }
+
+            @Override
+            public SCell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return table[i][j++];
+            }
+        };
+    }
+}
@@ -0,0 +1,412 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.Predicate;
+
+/**
+ * Maintains a topological order of the cells of a spreadsheet while references are added and removed,
+ * using the Pearce-Kelly dynamic topological sort.
+ * Every cell has a position (its topo index) such that a precedent is always before its dependents.
+ * Adding an edge which breaks the order only reorders the cells between the two positions
+ * that are reachable from (or reach) the new edge.
+ * An edge which closes a cycle can not be ordered: it is kept as a pending edge, and ordered
+ * again once one of the edges of its cycle is removed.
+ * The range of a range function (e.g., SUM(A0:A5000)) is a single range edge, from all of its stored cells
+ * to the cell of the function: it is ordered with a single reordering, and kept as a single pending edge,
+ * rather than as an edge per cell of the range.
+ * When the dependent of a new edge has only a few (transitive) dependents, they are all moved
+ * to fresh positions at the end of the order instead, which costs only their number
+ * (e.g., a sheet filled row by row against the initial order).
+ * Positions are handed out as cells are created, and compacted once too many were left unused
+ * (so a sparse sheet keeps the positions proportional to its stored cells).
+ */
+public class DynamicTopoOrder {
+    private static final Comparator<SCell> BY_INDEX = Comparator.comparingInt(SCell::getTopoIndex);
+    // the maximal number of dependents moved to the end of the order
+    private static final int MOVE_LIMIT = 64;
+    // the first position which was not handed out yet
+    private int bound = 0;
+    // positions which are no longer held by any cell
+    private int unused = 0;
+    // from -> to edges which close a cycle, and so are not part of the order
+    private final HashMap<SCell, HashSet<SCell>> pending = new HashMap<>();
+    // range edges which close a cycle, by their dependent
+    private final HashMap<SCell, ArrayList<PendingRange>> pendingRanges = new HashMap<>();
+    private int pendingCount = 0;
+
+    /**
+     * A range edge which closes a cycle: the range, its stored cells, and the cell of the range function.
+     */
+    private record PendingRange(Formula.Aggregate range, Iterable<SCell> cells, SCell to) {
+    }
+
+    /**
+     * Puts a new cell (without any edge) at the end of the order.
+     *
+     * @param cell the cell.
+     */
+    public void append(SCell cell) {
+        cell.setTopoIndex(bound++);
+    }
+
+    /**
+     * Records that a cell (without any edge) was dropped, leaving its position unused.
+     */
+    public void release() {
+        unused++;
+    }
+
+    /**
+     * Returns an upper bound of the positions in use, so a position can index an array of this size.
+     *
+     * @return one more than the last position handed out.
+     */
+    public int getBound() {
+        return bound;
+    }
+
+    /**
+     * Returns true iff most of the positions handed out are unused, and the order should be compacted.
+     *
+     * @return true if compact() would shrink the positions considerably.
+     */
+    public boolean needsCompaction() {
+        return unused > 1024 && unused > bound / 2;
+    }
+
+    /**
+     * Renumbers the given cells (all the cells in the order) 0..n-1, keeping their relative order.
+     *
+     * @param cells the cells in the order.
+     */
+    public void compact(Iterable<SCell> cells) {
+        ArrayList<SCell> all = new ArrayList<>();
+        for (SCell cell : cells) {
+            all.add(cell);
+        }
+        sort(all);
+        for (int i = 0; i < all.size(); i++) {
+            all.get(i).setTopoIndex(i);
+        }
+        bound = all.size();
+        unused = 0;
+    }
+
+    /**
+     * Returns the number of edges which are not ordered since they close a cycle.
+     *
+     * @return the number of pending edges.
+     */
+    public int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Adds the edge from -> to (to refers to from) to the order.
+     * The dependency graph (the successors of from) must already hold the edge.
+     *
+     * @param from the precedent.
+     * @param to the dependent.
+     * @return true if the edge was ordered, false if it closes a cycle (and is kept as pending).
+     */
+    public boolean addEdge(SCell from, SCell to) {
+        int lb = to.getTopoIndex(), ub = from.getTopoIndex();
+        if (from != to && ub < lb) {
+            return true;
+        }
+        ArrayList<SCell> sources = new ArrayList<>();
+        sources.add(from);
+        if (from == to || !order(sources, next -> next == from, to, ub)) {
+            if (pending.computeIfAbsent(from, k -> new HashSet<>()).add(to)) {
+                pendingCount++;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the range edge from the stored cells of a range to the cell of its range function.
+     * The cells are only scanned for the ones which are not before the dependent, so an ordered range
+     * costs a single pass over its stored cells.
+     *
+     * @param range the range.
+     * @param cells the stored cells of the range (scanned again whenever the edge is ordered).
+     * @param to the cell whose formula aggregates the range.
+     * @return true if the edge was ordered, false if it closes a cycle (and is kept as pending).
+     */
+    public boolean addRangeEdge(Formula.Aggregate range, Iterable<SCell> cells, SCell to) {
+        int lb = to.getTopoIndex();
+        int ub = -1;
+        boolean cycle = false;
+        ArrayList<SCell> sources = new ArrayList<>();
+        for (SCell p : cells) {
+            if (p == to) {
+                cycle = true;
+                break;
+            }
+            if (p.getTopoIndex() > lb) {
+                sources.add(p);
+                ub = Math.max(ub, p.getTopoIndex());
+            }
+        }
+        if (!cycle && sources.isEmpty()) {
+            return true;
+        }
+        if (cycle || !order(sources, next -> range.contains(next.getX(), next.getY()), to, ub)) {
+            pendingRanges.computeIfAbsent(to, k -> new ArrayList<>()).add(new PendingRange(range, cells, to));
+            pendingCount++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes a range edge added by addRangeEdge().
+     *
+     * @param range the range.
+     * @param to the cell whose formula aggregated the range.
+     */
+    public void removeRangeEdge(Formula.Aggregate range, SCell to) {
+        ArrayList<PendingRange> ranges = pendingRanges.get(to);
+        if (ranges != null && ranges.removeIf(e -> e.range() == range)) {
+            pendingCount--;
+            if (ranges.isEmpty()) {
+                pendingRanges.remove(to);
+            }
+        }
+    }
+
+    /**
+     * Moves the sources (the cells which are after to) and the cells which reach them before to and its dependents.
+     *
+     * @param sources the precedents of the new edge which are not before to.
+     * @param isSource true for a cell of the new edge's precedents.
+     * @param to the dependent of the new edge.
+     * @param ub the largest position of the sources.
+     * @return false if the new edge closes a cycle (nothing was moved).
+     */
+    private boolean order(ArrayList<SCell> sources, Predicate<SCell> isSource, SCell to, int ub) {
+        ArrayList<SCell> forward = forward(to, isSource, ub);
+        if (forward != null && forward.size() <= MOVE_LIMIT) {
+            ArrayList<SCell> all = allDependents(to, isSource);
+            if (all == null) {
+                return false;
+            } else if (all.size() <= MOVE_LIMIT) {
+                moveToEnd(all);
+                return true;
+            }
+        }
+        if (forward == null) {
+            return false;
+        }
+        reorder(backward(sources, to.getTopoIndex()), forward);
+        return true;
+    }
+
+    /**
+     * Removes the edge from -> to. Removing an edge never breaks the order,
+     * only a pending edge has to be dropped.
+     *
+     * @param from the precedent.
+     * @param to the dependent.
+     */
+    public void removeEdge(SCell from, SCell to) {
+        HashSet<SCell> tos = pending.get(from);
+        if (tos != null && tos.remove(to)) {
+            pendingCount--;
+            if (tos.isEmpty()) {
+                pending.remove(from);
+            }
+        }
+    }
+
+    /**
+     * Tries to order all the pending edges again, should be called after edges were removed
+     * (which might have broken their cycles).
+     */
+    public void retryPending() {
+        if (pendingCount == 0) {
+            return;
+        }
+        ArrayList<SCell[]> edges = new ArrayList<>(pendingCount);
+        for (SCell from : pending.keySet()) {
+            for (SCell to : pending.get(from)) {
+                edges.add(new SCell[]{from, to});
+            }
+        }
+        ArrayList<PendingRange> ranges = new ArrayList<>();
+        for (ArrayList<PendingRange> r : pendingRanges.values()) {
+            ranges.addAll(r);
+        }
+        pending.clear();
+        pendingRanges.clear();
+        pendingCount = 0;
+        for (SCell[] e : edges) {
+            addEdge(e[0], e[1]);
+        }
+        for (PendingRange r : ranges) {
+            addRangeEdge(r.range(), r.cells(), r.to());
+        }
+    }
+
+    /**
+     * Sorts the given cells by their position in the order.
+     *
+     * @param cells the cells to sort.
+     */
+    public static void sort(ArrayList<SCell> cells) {
+        cells.sort(BY_INDEX);
+    }
+
+    /**
+     * Returns true iff from is a predecessor of to only through pending edges:
+     * neither its reference nor a range of to which covers it is part of the order.
+     */
+    private boolean isPending(SCell from, SCell to) {
+        if (pendingCount == 0) {
+            return false;
+        }
+        HashSet<SCell> tos = pending.get(from);
+        if (from.getDependents().contains(to) && (tos == null || !tos.contains(to))) {
+            return false;
+        }
+        ArrayList<PendingRange> ranges = pendingRanges.get(to);
+        for (Formula.Aggregate r : to.getRanges()) {
+            if (r.contains(from.getX(), from.getY()) && (ranges == null || !isPendingRange(ranges, r))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPendingRange(ArrayList<PendingRange> ranges, Formula.Aggregate r) {
+        for (PendingRange e : ranges) {
+            if (e.range() == r) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the cells reachable from start (through ordered edges) with a position up to ub.
+     *
+     * @return the cells found, or null if a target is reachable (i.e., the new edge closes a cycle).
+     */
+    private ArrayList<SCell> forward(SCell start, Predicate<SCell> target, int ub) {
+        ArrayList<SCell> ans = new ArrayList<>();
+        HashSet<SCell> seen = new HashSet<>();
+        ArrayDeque<SCell> stack = new ArrayDeque<>();
+        seen.add(start);
+        stack.push(start);
+        while (!stack.isEmpty()) {
+            SCell cell = stack.pop();
+            ans.add(cell);
+            for (SCell next : cell.getSuccessors()) {
+                if (target.test(next)) {
+                    if (!isPending(cell, next)) {
+                        return null;
+                    }
+                } else if (next.getTopoIndex() < ub && !seen.contains(next) && !isPending(cell, next)) {
+                    seen.add(next);
+                    stack.push(next);
+                }
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Collects start and all of its (transitive) dependents through ordered edges, up to MOVE_LIMIT + 1 cells.
+     *
+     * @return the cells found, or null if a target is reachable (i.e., the new edge closes a cycle).
+     */
+    private ArrayList<SCell> allDependents(SCell start, Predicate<SCell> target) {
+        ArrayList<SCell> ans = new ArrayList<>();
+        HashSet<SCell> seen = new HashSet<>();
+        ArrayDeque<SCell> stack = new ArrayDeque<>();
+        seen.add(start);
+        stack.push(start);
+        while (!stack.isEmpty() && ans.size() <= MOVE_LIMIT) {
+            SCell cell = stack.pop();
+            ans.add(cell);
+            for (SCell next : cell.getSuccessors()) {
+                if (isPending(cell, next)) {
+                    continue;
+                }
+                if (target.test(next)) {
+                    return null;
+                }
+                if (seen.add(next)) {
+                    stack.push(next);
+                }
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Moves the given cells, keeping their relative order, to fresh positions after all the other cells.
+     * Valid when the cells are closed under their dependents.
+     */
+    private void moveToEnd(ArrayList<SCell> cells) {
+        cells.sort(BY_INDEX);
+        for (SCell cell : cells) {
+            cell.setTopoIndex(bound++);
+        }
+        unused += cells.size();
+    }
+
+    /**
+     * Collects the starts and the cells which reach them (through ordered edges) with a position from lb.
+     */
+    private ArrayList<SCell> backward(ArrayList<SCell> starts, int lb) {
+        ArrayList<SCell> ans = new ArrayList<>();
+        HashSet<SCell> seen = new HashSet<>();
+        ArrayDeque<SCell> stack = new ArrayDeque<>();
+        for (SCell start : starts) {
+            if (seen.add(start)) {
+                stack.push(start);
+            }
+        }
+        while (!stack.isEmpty()) {
+            SCell cell = stack.pop();
+            ans.add(cell);
+            for (SCell prev : cell.getPredecessors()) {
+                if (prev.getTopoIndex() > lb && !seen.contains(prev) && !isPending(prev, cell)) {
+                    seen.add(prev);
+                    stack.push(prev);
+                }
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Moves the backward cells before the forward cells, using only the positions they already hold.
+     */
+    private void reorder(ArrayList<SCell> backward, ArrayList<SCell> forward) {
+        backward.sort(BY_INDEX);
+        forward.sort(BY_INDEX);
+        int[] slots = new int[backward.size() + forward.size()];
+        int i = 0;
+        for (SCell cell : backward) {
+            slots[i++] = cell.getTopoIndex();
+        }
+        for (SCell cell : forward) {
+            slots[i++] = cell.getTopoIndex();
+        }
+        Arrays.sort(slots);
+        i = 0;
+        for (SCell cell : backward) {
+            cell.setTopoIndex(slots[i++]);
+        }
+        for (SCell cell : forward) {
+            cell.setTopoIndex(slots[i++]);
+        }
+    }
+}
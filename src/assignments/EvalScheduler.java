@@ -0,0 +1,113 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Computes the evaluation order of a spreadsheet from its dependency graph.
+ * Uses Kahn's algorithm: a cell is scheduled once all of its precedents were scheduled,
+ * so the order (and the depth of every cell) is built in a single O(cells + edges) pass.
+ * Only the stored cells are visited, so a sparse sheet is scheduled in time proportional to its populated cells.
+ * Cells that are on a cycle, or depend on one, are never scheduled and get the depth -1.
+ */
+public class EvalScheduler {
+    // indexed by the topo index of a cell
+    private final int[] depths;
+    private final ArrayList<SCell> order;
+    private final ArrayList<SCell> unscheduled = new ArrayList<>();
+    private int maxDepth = 0;
+
+    /**
+     * Builds the evaluation order of the given cells.
+     *
+     * @param cells the cells of the spreadsheet (with their precedents and dependents).
+     * @param indexBound an upper bound of the topo indices of the cells (see DynamicTopoOrder.getBound()).
+     */
+    public EvalScheduler(CellStore cells, int indexBound) {
+        depths = new int[indexBound];
+        order = new ArrayList<>(cells.size());
+        int[] indegree = new int[indexBound];
+        ArrayDeque<SCell> queue = new ArrayDeque<>();
+        // roots whose ranges only cover empty cells have the depth 1, so they are queued after the depth 0 roots
+        ArrayList<SCell> rangeRoots = new ArrayList<>();
+
+        for (SCell cell : cells) {
+            int i = cell.getTopoIndex();
+            indegree[i] = cell.getPredecessors().size();
+            depths[i] = cell.getRangeDepth();
+            if (indegree[i] == 0) {
+                if (depths[i] == 0) {
+                    queue.add(cell);
+                } else {
+                    rangeRoots.add(cell);
+                }
+            }
+        }
+        queue.addAll(rangeRoots);
+
+        // FIFO order: the cells are scheduled in a non decreasing depth
+        while (!queue.isEmpty()) {
+            SCell cell = queue.poll();
+            order.add(cell);
+            int d = depths[cell.getTopoIndex()];
+            if (d > maxDepth) {
+                maxDepth = d;
+            }
+            for (SCell dependent : cell.getSuccessors()) {
+                int i = dependent.getTopoIndex();
+                if (depths[i] < d + 1) {
+                    depths[i] = d + 1;
+                }
+                indegree[i]--;
+                if (indegree[i] == 0) {
+                    queue.add(dependent);
+                }
+            }
+        }
+
+        // Whatever was not scheduled is on a cycle or depends on one
+        if (order.size() < cells.size()) {
+            for (SCell cell : cells) {
+                if (indegree[cell.getTopoIndex()] > 0) {
+                    depths[cell.getTopoIndex()] = Ex2Utils.ERR;
+                    unscheduled.add(cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the cells which can be evaluated, each one after all of its precedents.
+     *
+     * @return the evaluation order.
+     */
+    public ArrayList<SCell> getOrder() {
+        return order;
+    }
+
+    /**
+     * Returns the cells which could not be scheduled (on a cycle, or depending on one).
+     *
+     * @return the unscheduled cells.
+     */
+    public ArrayList<SCell> getUnscheduled() {
+        return unscheduled;
+    }
+
+    /**
+     * Returns the depth of the given cell, as defined by Sheet.depth().
+     *
+     * @param cell a cell of the scheduled spreadsheet.
+     * @return the depth of the cell, or -1 if it was not scheduled.
+     */
+    public int getDepth(SCell cell) {
+        return depths[cell.getTopoIndex()];
+    }
+
+    /**
+     * Returns the maximum depth of the scheduled cells.
+     *
+     * @return the maximum depth (0 if no cell depends on another).
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
@@ -17,6 +17,7 @@ public class Ex2GUI {
 
 	private static Sheet table; // this is the main data (an implementation of the Sheet interface).
 	private static Index2D cord = null; // a table entry used by the GUI of setting up a cell value / form
+	private static RecalcScheduler scheduler = null; // computes the visible cells first, and the rest between frames
 	public Ex2GUI() {;}  // an empty (redundant) constructor.
 
 	/** The main function for running Ex2 */
@@ -35,16 +36,22 @@ public class Ex2GUI {
 		StdDrawEx2.setScale(0, Ex2Utils.MAX_X);
 		StdDrawEx2.setPenRadius(Ex2Utils.PEN_RADIUS);
 		StdDrawEx2.enableDoubleBuffering();
+		if (table instanceof Ex2Sheet) {
+			scheduler = RecalcScheduler.attach((Ex2Sheet) table);
+			scheduler.setViewport(0, 0, Ex2Utils.WIDTH - 1, Ex2Utils.HEIGHT - 1);
+		}
 		table.eval();
 		// endless loop (GUI)
 		while (true) {
 			StdDrawEx2.clear(); // clear the GUI (Ex2 window).
 			drawFrame(); // draws the lines.
+			if (scheduler != null) {scheduler.computeViewport();} // the visible cells first
 			drawCells(); // draws the cells
 			StdDrawEx2.show(); // presents the window.
 			int xx = StdDrawEx2.getXX(); // gets the x coordinate of the mouse click (-1 if none)
 			int yy = StdDrawEx2.getYY(); // gets the y coordinate of the mouse click (-1 if none)
 			inputCell(xx,yy); 			 // if isIn(xx,yy) an input window will be opened to allow the user to edit cell (xx,yy);
+			if (scheduler != null) {scheduler.runBackground(Ex2Utils.WAIT_TIME_MS * 1000000L / 2);} // the rest of the sheet, in half of the wait
 			StdDrawEx2.pause(Ex2Utils.WAIT_TIME_MS); // waits a few milliseconds - say 30 fps is sufficient.
 		}
 	}
@@ -88,7 +95,7 @@ public class Ex2GUI {
 			StdDrawEx2.line(xs, 0, xs, max_y);
 			int yy = max_y - (y + 1);
 			StdDrawEx2.text(1, y + y_height, "" + (yy));
-			StdDrawEx2.text(xc, max_y + y_height, "" + Ex2Utils.ABC[y]);
+			StdDrawEx2.text(xc, max_y + y_height, CellAddress.columnName(y));
 		}
 	}
 	/**
@@ -104,7 +111,7 @@ public class Ex2GUI {
 			double xc = x_start + x * x_space;
 			for (int y = 0; y < max_y; y = y + 1) {
 				String w = table.value(x, y);//""+abc[x]+y;
-				Cell cc = table.get(x, y);
+				Cell cc = cellAt(CellAddress.pack(x, y));
 				int t = cc.getType();
 				StdDrawEx2.setPenColor(getColorFromType(t));
 				int max = Math.min(Ex2Utils.MAX_CHARS, w.length());
@@ -115,6 +122,16 @@ public class Ex2GUI {
 		}
 	}
 
+	/** Looks up a cell by its packed coordinate (see CellAddress.pack), without an address string.
+	 *
+	 * @param cell the packed coordinate of the cell.
+	 * @return the cell.
+	 */
+	private static Cell cellAt(long cell) {
+		if (table instanceof Ex2Sheet) {return ((Ex2Sheet) table).get(cell);}
+		return table.get(CellAddress.x(cell), CellAddress.y(cell));
+	}
+
 	/** input a content into cell(xx,yy) if it is within this SpreadSheet.
 	 *
 	 * @param xx the x coordinate of the required cell.
@@ -122,25 +139,21 @@ public class Ex2GUI {
 	 */
 	private static void inputCell(int xx,int yy) {
 		if(table.isIn(xx,yy)) {
-			Cell cc = table.get(xx,yy);
-			cord = new CellEntry(Ex2Utils.ABC[xx]+yy);
+			long cell = CellAddress.pack(xx, yy);
+			Cell cc = cellAt(cell);
+			cord = new CellEntry(CellAddress.x(cell), CellAddress.y(cell));
 			String ww = cord+": "+cc.toString()+" : ";
 			StdDrawEx2.text(Ex2Utils.GUI_X_START, Ex2Utils.MAX_X-1, ww);
 			StdDrawEx2.show();
 			if(Ex2Utils.Debug) {System.out.println(ww);}
 			String c = StdDrawEx2.getCell(cord,cc.getData());
-			String s1 = table.get(xx,yy).getData();
+			String s1 = cellAt(cell).getData();
 			if(c==null) {
 				table.set(xx,yy,s1);
 			}
 			else {
-				table.set(xx, yy, c);
-				int[][] calc_d = table.depth();
-				if (calc_d[xx][yy] == Ex2Utils.ERR) {
-					table.get(xx,yy).setType(Ex2Utils.ERR_CYCLE_FORM);
-				}
+				table.set(xx, yy, c); // updates the order, the cycles and the values of the affected cells
 			}
-			table.eval();
 			StdDrawEx2.resetXY();
 		}
 	}
@@ -1,23 +1,89 @@
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractCollection;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Scanner;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.SubmissionPublisher;
 /**
- * Implementation of the Sheet interface using a 2D array of SCell objects.
+ * Implementation of the Sheet interface using a store of SCell objects.
+ * By default every coordinate holds its own cell (a dense 2D array), a sparse sheet holds only
+ * the populated cells (and the empty cells they refer to), so its memory and its evaluation time
+ * are proportional to the populated cells rather than to width*height.
  * Supports spreadsheet functionalities such as setting, evaluating, loading, and saving cell data.
  */
 public class Ex2Sheet implements Sheet {
     /**
-     * 2D array of cells representing the spreadsheet's table.
+     * The cells of the spreadsheet's table, by their x,y coordinate.
      * Each cell is initialized with default values and type is set to TEXT.
      * The cell entries are assigned based on the column (letter) and row (number).
-     *
-     * @param x the number of columns in the spreadsheet.
-     * @param y the number of rows in the spreadsheet.
      */
-    private Cell[][] table;
+    private CellStore table;
+    private final int width, height;
+    // returned by get(x, y) for any coordinate a sparse sheet does not store
+    private final SCell emptyCell;
+
+    /**
+     * Incremented on every full evaluation.
+     * The results memoized by the cells are valid only for the current version
+     * (an edit invalidates the results of the cells it affects).
+     */
+    private int version;
+    // the version at the end of the last full evaluation
+    private int evaluatedVersion = -1;
+
+    /**
+     * The default minimal number of cells in a dependency level for it to be evaluated in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_THRESHOLD = 1024;
+    // cells evaluated by a single task of a parallel level
+    private static final int PARALLEL_CHUNK = 256;
+    private boolean parallel = false;
+    private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    // in on-demand mode formulas are computed only when read, the number of stale cells
+    private boolean onDemand = false;
+    private int staleCells = 0;
+    // the cells which became stale, in their order, for computing them later (see computePending())
+    private final ArrayDeque<SCell> staleQueue = new ArrayDeque<>();
+
+    // the topological order of the cells, maintained by set()
+    private DynamicTopoOrder topoOrder;
+    // the ranges of the range functions, by the cells which aggregate them
+    private RangeIndex ranges;
+    // the edits recorded since beginBatch(), in their order, null when not in a batch
+    private ArrayList<Edit> batch;
+    private int batchDepth = 0;
+    // the write-ahead journal of the edits, or null
+    private SheetJournal journal;
+    // the cells changed by the current recalculation, and by the last one
+    private final ChangeSet.Builder changes = new ChangeSet.Builder();
+    private ChangeSet lastChanges = ChangeSet.EMPTY;
+    // the data of the edited cells before the edits, in columnar mode (where the value of a text is its data)
+    private final HashMap<SCell, String> editedTexts = new HashMap<>();
+    // publishes the change set of every recalculation, created by the first call to changes()
+    private SubmissionPublisher<ChangeSet> publisher;
+    // null when metrics are off
+    private SheetMetrics metrics;
+    // the evaluated results in primitive columns, null unless the columnar mode is on
+    private ColumnStore columns;
+    // the number of computations after which a formula is compiled, 0 for never
+    private int compileThreshold = 0;
 
     /**
      * Constructs a spreadsheet with the specified dimensions.
@@ -28,12 +94,38 @@ public class Ex2Sheet implements Sheet {
      * @param y the number of rows.
      */
     public Ex2Sheet(int x, int y) {
-        table = new SCell[x][y];
-        for (int i = 0; i < x; i = i + 1) {
-            for (int j = 0; j < y; j = j + 1) {
-                table[i][j] = new SCell("", this);
-                table[i][j].setType(Ex2Utils.TEXT);
-                ((SCell) table[i][j]).setEntry(new CellEntry(Ex2Utils.ABC[i] + j));
+        this(x, y, false);
+    }
+
+    /**
+     * Constructs a spreadsheet with the specified dimensions, and a dense or a sparse storage.
+     * A sparse spreadsheet creates a cell only when a coordinate is set (or referred to by a formula),
+     * and drops it once it is empty again and no formula refers to it.
+     * Any coordinate it does not hold is read as a shared, read-only empty cell.
+     *
+     * @param x the number of columns.
+     * @param y the number of rows.
+     * @param sparse true for a sparse storage, false for a cell per coordinate.
+     */
+    public Ex2Sheet(int x, int y, boolean sparse) {
+        width = x;
+        height = y;
+        topoOrder = new DynamicTopoOrder();
+        ranges = new RangeIndex(x);
+        emptyCell = new EmptyCell(this);
+        if (sparse) {
+            table = new SparseCellStore();
+        } else {
+            table = new DenseCellStore(x, y);
+            // built here rather than by newCell(): no range is registered yet
+            for (int i = 0; i < x; i = i + 1) {
+                for (int j = 0; j < y; j = j + 1) {
+                    SCell c = new SCell("", this);
+                    c.setType(Ex2Utils.TEXT);
+                    c.setEntry(new CellEntry(i, j));
+                    topoOrder.append(c);
+                    table.put(c);
+                }
             }
         }
         eval();
@@ -49,7 +141,9 @@ public class Ex2Sheet implements Sheet {
 
     /**
      * Retrieves the value of a cell at the specified coordinates.
-     * Evaluates the cell if needed and handles errors such as invalid format or cycle errors.
+     * The spreadsheet is evaluated only if it has changed since its last evaluation,
+     * otherwise the value computed by that evaluation is returned.
+     * In on-demand mode a stale cell is computed here, with its stale precedents (see setOnDemand()).
      *
      * @param x the column index of the cell.
      * @param y the row index of the cell.
@@ -59,34 +153,264 @@ public class Ex2Sheet implements Sheet {
     public String value(int x, int y) {
         String ans = Ex2Utils.EMPTY_CELL;
         SCell c = (SCell) get(x, y);
-        if (c != null) {
-            this.eval();
+        if (c != null && c != emptyCell) {
+            if (evaluatedVersion != version) {
+                this.eval();
+            }
+            if (c.isStale()) {
+                demand(c);
+            }
             if (c.getType() == Ex2Utils.ERR_FORM_FORMAT) {
                 return Ex2Utils.ERR_FORM;
             } else if (c.getType() == Ex2Utils.ERR_CYCLE_FORM) {
                 return Ex2Utils.ERR_CYCLE;
             }
-            ans = c.toString();
-            if (c.getType() == Ex2Utils.FORM) {
-                try {
-                    eval();
-                    ans = String.valueOf(c.computeForm(ans));
-                } catch (SCell.ErrorForm e) {
-                    ans = Ex2Utils.ERR_FORM;
-                } catch (SCell.ErrorCycle e) {
-                    ans = Ex2Utils.ERR_CYCLE;
+            if (columns != null) {
+                // the string of a numeric result is made only here, at display time
+                int type = columns.getType(x, y);
+                if (type == Ex2Utils.NUMBER || type == Ex2Utils.FORM) {
+                    return String.valueOf(columns.getValue(x, y));
                 }
-            } else if (c.getType() == Ex2Utils.NUMBER) {
-                ans = Double.parseDouble(ans) + "";
-            } else if (c.getType() == Ex2Utils.TEXT) {
-                ans = ans;
+                return c.getData();
+            }
+            ans = c.getValue();
+        }
+        return ans;
+    }
+
+    /**
+     * Returns the current version of this spreadsheet (see SCell.computeForm()).
+     *
+     * @return the version number.
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * Attaches a write-ahead journal (see SheetJournal.open()), which receives every edit before it is applied,
+     * or detaches it (with null).
+     *
+     * @param j the journal, or null.
+     */
+    public void setJournal(SheetJournal j) {
+        this.journal = j;
+    }
+
+    /**
+     * @return the attached journal, or null.
+     */
+    public SheetJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Turns the recalculation metrics on (with the given metrics object) or off (with null, the default).
+     *
+     * @param m the metrics to update, or null.
+     */
+    public void setMetrics(SheetMetrics m) {
+        this.metrics = m;
+    }
+
+    /**
+     * Returns the recalculation metrics of this spreadsheet.
+     *
+     * @return the metrics, or null if they are off.
+     */
+    public SheetMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Turns the columnar storage mode on or off (off by default).
+     * In columnar mode the evaluated results are kept in primitive columns (see ColumnStore) instead of
+     * a string per cell: no string is made while evaluating, value(x, y) formats a number when it is read.
+     * Switching the mode makes the next value(x, y) evaluate the whole spreadsheet.
+     *
+     * @param c true to keep the results in columns.
+     */
+    public void setColumnar(boolean c) {
+        columns = c ? new ColumnStore(width, height) : null;
+        evaluatedVersion = -1;
+    }
+
+    /**
+     * Returns true iff the columnar storage mode is on.
+     *
+     * @return the storage mode of the results.
+     */
+    public boolean isColumnar() {
+        return columns != null;
+    }
+
+    /**
+     * Returns the columns of evaluated results, for scanning the values of many cells.
+     *
+     * @return the result columns, or null if the columnar mode is off.
+     */
+    public ColumnStore getColumns() {
+        return columns;
+    }
+
+    /**
+     * Turns the compilation of hot formulas on (with a positive threshold) or off (with 0, the default).
+     * A formula computed successfully that many times is compiled into a MethodHandle chain
+     * (see FormulaCompiler), which gives the same results and errors as the expression tree.
+     * References are loaded directly from the result columns when the columnar mode is on.
+     *
+     * @param evaluations the number of computations before a formula is compiled, or 0 for never.
+     */
+    public void setCompileThreshold(int evaluations) {
+        this.compileThreshold = Math.max(0, evaluations);
+    }
+
+    /**
+     * Returns the number of computations after which a formula is compiled.
+     *
+     * @return the compile threshold, 0 if formulas are never compiled.
+     */
+    public int getCompileThreshold() {
+        return compileThreshold;
+    }
+
+    /**
+     * Turns the parallel evaluation mode on or off (off by default).
+     * In parallel mode the cells of each dependency level are evaluated across the common ForkJoinPool,
+     * and a level starts only after the previous one is done. The results are the same as in serial mode.
+     *
+     * @param p true to evaluate large levels in parallel.
+     */
+    public void setParallel(boolean p) {
+        this.parallel = p;
+    }
+
+    /**
+     * Returns true iff the parallel evaluation mode is on.
+     *
+     * @return the evaluation mode.
+     */
+    public boolean isParallel() {
+        return parallel;
+    }
+
+    /**
+     * Turns the on-demand evaluation mode on or off (off by default).
+     * In on-demand mode eval(), set() and commit() still maintain the dependency graph, the depths and the cycles,
+     * but instead of computing a formula they only mark it (and the formulas which depend on it) stale.
+     * value(x, y) of a stale cell computes its stale precedents (in topological order) and then the cell,
+     * and keeps their results, so the cells which are never read are never computed.
+     * The cells a read computes are published as its change set.
+     * Turning the mode off makes the next value(x, y) evaluate the whole spreadsheet.
+     * The on-demand mode evaluates on the calling thread (see setParallel()).
+     *
+     * @param d true to compute formulas only when they are read.
+     */
+    public void setOnDemand(boolean d) {
+        this.onDemand = d;
+        if (!d && staleCells > 0) {
+            for (SCell cell : table) {
+                cell.setStale(false);
+            }
+            staleCells = 0;
+            staleQueue.clear();
+            evaluatedVersion = -1;
+        }
+    }
+
+    /**
+     * Returns true iff the on-demand evaluation mode is on.
+     *
+     * @return the evaluation mode.
+     */
+    public boolean isOnDemand() {
+        return onDemand;
+    }
+
+    /**
+     * Returns the number of cells whose result is out of date (only in on-demand mode).
+     *
+     * @return the stale cells.
+     */
+    public int getStaleCount() {
+        return staleCells;
+    }
+
+    /**
+     * Computes the cell at the given coordinates if it is stale, with its stale precedents (see setOnDemand()),
+     * without making its value string.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return the number of computed cells.
+     */
+    public int compute(int x, int y) {
+        if (evaluatedVersion != version) {
+            eval();
+        }
+        SCell c = table.get(x, y);
+        if (c == null || !c.isStale()) {
+            checkBounds(x, y);
+            return 0;
+        }
+        return demand(c);
+    }
+
+    /**
+     * Computes stale cells (with their stale precedents) in the order they became stale,
+     * until at least maxCells cells were computed or no cell is stale (see setOnDemand()).
+     * Used for finishing the sheet in small steps (see RecalcScheduler).
+     *
+     * @param maxCells the number of cells to compute in this step.
+     * @return the number of computed cells.
+     */
+    public int computePending(int maxCells) {
+        if (evaluatedVersion != version) {
+            eval();
+        }
+        int ans = 0;
+        while (ans < maxCells && !staleQueue.isEmpty()) {
+            SCell c = staleQueue.poll();
+            if (c.isStale()) {
+                ans += demand(c);
             }
         }
         return ans;
     }
 
+    /**
+     * Sets the minimal number of cells in a dependency level for it to be evaluated in parallel,
+     * smaller levels are evaluated on the calling thread.
+     *
+     * @param threshold the minimal level size (at least 1).
+     */
+    public void setParallelThreshold(int threshold) {
+        this.parallelThreshold = Math.max(1, threshold);
+    }
+
+    /**
+     * Returns true iff this spreadsheet holds only its populated cells (see Ex2Sheet(int, int, boolean)).
+     *
+     * @return true for a sparse storage.
+     */
+    public boolean isSparse() {
+        return table instanceof SparseCellStore;
+    }
+
+    /**
+     * Returns the number of cells this spreadsheet holds in memory:
+     * width*height for a dense sheet, the populated (and referred to) cells for a sparse one.
+     *
+     * @return the number of stored cells.
+     */
+    public int getCellCount() {
+        return table.size();
+    }
+
     /**
      * Retrieves the cell at the specified coordinates.
+     * In a sparse spreadsheet an empty coordinate is read as a shared empty cell, which ignores any change
+     * (use set(x, y, s) to fill it).
      *
      * @param x the column index.
      * @param y the row index.
@@ -94,28 +418,134 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public Cell get(int x, int y) {
-        return table[x][y];
+        SCell c = table.get(x, y);
+        if (c == null) {
+            checkBounds(x, y);
+            return emptyCell;
+        }
+        return c;
+    }
+
+    /**
+     * Retrieves the cell stored at the specified coordinates, creating an empty one if the coordinate is not stored.
+     * Used to attach the dependents of a formula to the cells it refers to, even if those are still empty.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @return the stored cell at the specified coordinates.
+     */
+    public SCell getOrCreate(int x, int y) {
+        SCell c = table.get(x, y);
+        if (c == null) {
+            checkBounds(x, y);
+            c = newCell(x, y);
+        }
+        return c;
+    }
+
+    private void checkBounds(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) {
+            throw new IndexOutOfBoundsException("Cell " + x + "," + y + " is out of the sheet");
+        }
+    }
+
+    /**
+     * Creates an empty (TEXT) cell at the given coordinates, and adds it to the store and to the topological order.
+     */
+    private SCell newCell(int x, int y) {
+        SCell c = new SCell("", this);
+        c.setType(Ex2Utils.TEXT);
+        c.setEntry(new CellEntry(x, y));
+        topoOrder.append(c);
+        table.put(c);
+        if (!ranges.isEmpty()) {
+            // a new cell in a registered range (a new member of its range edges) is ordered
+            // before the cells which aggregate it
+            ArrayList<SCell> deps = new ArrayList<>();
+            ranges.collectDependents(x, y, deps);
+            for (SCell d : deps) {
+                topoOrder.addEdge(c, d);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Drops the given cells from a sparse store, each one if it is empty and no formula refers to it.
+     */
+    private void releaseAll(List<SCell> cells) {
+        for (SCell c : cells) {
+            release(c);
+        }
+    }
+
+    /**
+     * Drops the given cell from a sparse store if it is empty and no formula refers to it.
+     */
+    private void release(SCell c) {
+        if (c.getData().isEmpty() && c.getDependents().isEmpty() && c.getPrecedents().isEmpty() && table.remove(c)) {
+            if (columns != null) {
+                columns.clear(c.getX(), c.getY());
+            }
+            if (!ranges.isEmpty()) {
+                // the cell is no longer a member of the ranges which cover it, which might break a cycle
+                topoOrder.retryPending();
+            }
+            topoOrder.release();
+            if (topoOrder.needsCompaction()) {
+                topoOrder.compact(table);
+            }
+        }
+    }
+
+    /**
+     * Retrieves the cell at the specified packed coordinate (see CellAddress.pack).
+     *
+     * @param cord the packed coordinate.
+     * @return the cell at the specified coordinate.
+     */
+    public Cell get(long cord) {
+        return get(CellAddress.x(cord), CellAddress.y(cord));
     }
 
     /**
      * Retrieves the cell corresponding to the given string index.
      *
-     * @param cords the cell index as a string (e.g., "A1").
-     * @return the cell at the specified index.
+     * @param cords the cell index as a string (e.g., "A1", "AB120").
+     * @return the cell at the specified index, or null if the index is not valid.
      */
     @Override
     public Cell get(String cords) {
         Cell ans = null;
-        CellEntry ce = new CellEntry(cords);
+        long cord = cords == null ? CellAddress.INVALID
+                : CellAddress.parse(cords, 0, cords.length(), addressWidth(), addressHeight());
 
-        if (ce.isValid()) {
-            int x = ce.getX();
-            int y = ce.getY();
-            ans = get(x, y);
+        if (cord != CellAddress.INVALID) {
+            ans = get(cord);
         }
         return ans;
     }
 
+    /**
+     * Returns the number of columns a cell reference may address: the width of this sheet,
+     * but at least the 26 columns of a classic sheet (a reference beyond the sheet evaluates to an error).
+     *
+     * @return the number of addressable columns.
+     */
+    public int addressWidth() {
+        return Math.max(CellAddress.CLASSIC_WIDTH, width);
+    }
+
+    /**
+     * Returns the number of rows a cell reference may address: the height of this sheet,
+     * but at least the 100 rows of a classic sheet.
+     *
+     * @return the number of addressable rows.
+     */
+    public int addressHeight() {
+        return Math.max(CellAddress.CLASSIC_HEIGHT, height);
+    }
+
     /**
      * Returns the width (number of columns) of the spreadsheet.
      *
@@ -123,7 +553,7 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public int width() {
-        return table.length;
+        return width;
     }
 
     /**
@@ -133,12 +563,15 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public int height() {
-        return table[0].length;
+        return height;
     }
 
     /**
      * Sets the value of the cell at the specified coordinates.
-     * Also updates dependent cells and evaluates the changed cell.
+     * The existing cell is kept, so its formula is re-parsed only if the text has changed.
+     * The dependency graph, the topological order, the cycles and the depths are updated incrementally,
+     * and only the changed cell and its dependents are evaluated again.
+     * Within a batch (see beginBatch()) the edit is only recorded, and applied by commit().
      *
      * @param x the column index.
      * @param y the row index.
@@ -146,150 +579,887 @@ public class Ex2Sheet implements Sheet {
      */
     @Override
     public void set(int x, int y, String s) {
-        SCell c = new SCell(s, this);
-        c.setEntry(new CellEntry(Ex2Utils.ABC[x] + y));
-        table[x][y] = c;
-        updateDependentCells(x, y);
-        eval(x, y);
+        if (batch != null) {
+            checkBounds(x, y);
+            batch.add(new Edit(x, y, s));
+            return;
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        if ((s == null || s.isEmpty()) && table.get(x, y) == null) {
+            checkBounds(x, y);
+            lastChanges = ChangeSet.EMPTY;
+            return;
+        }
+        SCell c = getOrCreate(x, y);
+        if (journal != null) {
+            journal.append(x, y, s);
+        }
+        ArrayList<SCell> unlinked = new ArrayList<>();
+        if (apply(c, s, unlinked)) {
+            // a removed reference might have broken a cycle
+            topoOrder.retryPending();
+        }
+        updateDependentCells(List.of(c));
+        release(c);
+        releaseAll(unlinked);
+        if (metrics != null) {
+            metrics.incrementalRecalc(System.nanoTime() - start);
+        }
+        if (journal != null) {
+            journal.applied();
+        }
+    }
+
+    /**
+     * Sets the value of the cell at the specified coordinates, like set(), and returns what changed.
+     * Within a batch nothing changes until commit().
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @param s the value to set.
+     * @return the cells whose value or type changed.
+     */
+    public ChangeSet update(int x, int y, String s) {
+        set(x, y, s);
+        return batch != null ? ChangeSet.EMPTY : lastChanges;
+    }
+
+    /**
+     * Returns the cells whose value or type changed in the last recalculation (an edit, a batch or an eval()).
+     *
+     * @return the last change set.
+     */
+    public ChangeSet getLastChanges() {
+        return lastChanges;
+    }
+
+    /**
+     * Returns a publisher of the change set of every recalculation which changed any cell.
+     * The change sets are delivered asynchronously (on the common ForkJoinPool), with the backpressure of
+     * SubmissionPublisher: once a subscriber's buffer is full, the next recalculation waits for it.
+     *
+     * @return the publisher of the change sets.
+     */
+    public synchronized Flow.Publisher<ChangeSet> changes() {
+        if (publisher == null) {
+            publisher = new SubmissionPublisher<>();
+        }
+        return publisher;
+    }
+
+    /**
+     * Completes the subscribers of changes(), e.g. when the sheet is closed.
+     */
+    public synchronized void closeChanges() {
+        if (publisher != null) {
+            publisher.close();
+            publisher = null;
+        }
+    }
+
+    /**
+     * Ends a recalculation: its changed cells become the last change set, and are published.
+     */
+    private void publishChanges() {
+        editedTexts.clear();
+        lastChanges = changes.build();
+        SubmissionPublisher<ChangeSet> p = publisher;
+        if (p != null && !lastChanges.isEmpty()) {
+            p.submit(lastChanges);
+        }
+    }
+
+    /**
+     * Starts a batch of edits: until the matching commit(), set(x, y, s) only records the edits,
+     * and the cells keep their data and values. Batches may be nested, only the outermost commit() applies the edits.
+     */
+    public void beginBatch() {
+        if (batchDepth++ == 0) {
+            batch = new ArrayList<>();
+        }
     }
 
     /**
-     * Updates all dependent cells that refer to the given cell.
+     * Returns true iff edits are being recorded (see beginBatch()).
      *
-     * @param x the column index of the updated cell.
-     * @param y the row index of the updated cell.
+     * @return true within a batch.
      */
-    private void updateDependentCells(int x, int y) {
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                SCell cell = (SCell) get(i, j);
-                if (cell.getType() == Ex2Utils.FORM) {
-                    ArrayList<SCell> refs = cell.getReferences(cell.getData());
-                    for (SCell ref : refs) {
-                        if (ref.entry.getIndex().equals(Ex2Utils.ABC[x] + y)) {
-                            eval(i, j);
+    public boolean isInBatch() {
+        return batch != null;
+    }
+
+    /**
+     * Ends a batch of edits (see beginBatch()). The outermost commit applies all the recorded edits in their order
+     * (so the last one of a cell wins) to the dependency graph, and then recalculates the union of the affected cells once:
+     * incrementally, or with a single eval() if they are most of the sheet.
+     *
+     * @return the cells whose value or type changed (nothing for a nested commit).
+     * @throws IllegalStateException if no batch was started.
+     */
+    public ChangeSet commit() {
+        if (batchDepth == 0) {
+            throw new IllegalStateException("No batch to commit");
+        }
+        if (--batchDepth > 0) {
+            return ChangeSet.EMPTY;
+        }
+        ArrayList<Edit> edits = batch;
+        batch = null;
+        long start = metrics == null ? 0 : System.nanoTime();
+        if (journal != null) {
+            for (Edit e : edits) {
+                journal.append(e.x(), e.y(), e.text());
+            }
+        }
+        ArrayList<SCell> changed = new ArrayList<>(edits.size());
+        HashSet<SCell> seen = new HashSet<>();
+        // the former precedents of the edited cells are released once the batch was recalculated:
+        // an emptied cell must still be there when its dependents are marked
+        ArrayList<SCell> unlinked = new ArrayList<>();
+        boolean removed = false;
+        for (Edit e : edits) {
+            if ((e.text() == null || e.text().isEmpty()) && table.get(e.x(), e.y()) == null) {
+                continue;
+            }
+            SCell c = getOrCreate(e.x(), e.y());
+            removed |= apply(c, e.text(), unlinked);
+            if (seen.add(c)) {
+                changed.add(c);
+            }
+        }
+        if (removed) {
+            topoOrder.retryPending();
+        }
+        if (changed.isEmpty()) {
+            releaseAll(unlinked);
+            lastChanges = ChangeSet.EMPTY;
+            return lastChanges;
+        }
+        ArrayList<SCell> cone = changed.size() > table.size() / 2 ? null : collectCone(changed);
+        if (cone == null || cone.size() > table.size() / 2) {
+            // the results of an evaluated sheet stay valid outside of the changed cells and their dependents
+            evaluate(isEvaluated() ? changed : null);
+        } else {
+            updateCone(cone, changed);
+            if (metrics != null) {
+                metrics.incrementalRecalc(System.nanoTime() - start);
+            }
+        }
+        releaseAll(changed);
+        releaseAll(unlinked);
+        if (journal != null) {
+            journal.applied();
+        }
+        return lastChanges;
+    }
+
+    /**
+     * Sets a cell with its data already classified and parsed (see SheetSnapshot).
+     * Like set(), but nothing is evaluated until the next eval().
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @param s the data.
+     * @param dataType the type of the data (see SCell.restoreData()).
+     * @param number the number of a NUMBER.
+     * @param formula the parsed formula of a FORM, or null.
+     * @throws IllegalStateException within a batch.
+     */
+    public void restore(int x, int y, String s, int dataType, double number, Formula formula) {
+        if (batch != null) {
+            throw new IllegalStateException("A cell can not be restored within a batch");
+        }
+        SCell c = getOrCreate(x, y);
+        ArrayList<SCell> unlinked = new ArrayList<>();
+        boolean removed = unlink(c, unlinked);
+        c.restoreData(s, dataType, number, formula);
+        link(c);
+        if (removed) {
+            topoOrder.retryPending();
+        }
+        releaseAll(unlinked);
+        version++;
+    }
+
+    /**
+     * Sets the evaluated state of a restored cell (see SheetSnapshot) instead of evaluating it:
+     * the type and the value of its result, its depth and whether it is on a cycle.
+     * Once all the cells were restored, markEvaluated() makes the sheet serve these results.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @param type the type of the result.
+     * @param number the numeric value of a NUMBER or FORM result.
+     * @param depth the depth of the cell (Ex2Utils.ERR on or after a cycle).
+     * @param onCycle true iff the cell is on a cycle.
+     */
+    public void restoreResult(int x, int y, int type, double number, int depth, boolean onCycle) {
+        SCell c = getOrCreate(x, y);
+        fresh(c);
+        c.setOrder(depth);
+        c.setOnCycle(onCycle);
+        c.restoreResult(type, number, version);
+        changes.add(c.getCoordinate());
+        if (type == Ex2Utils.ERR_CYCLE_FORM) {
+            setResult(c, type, Ex2Utils.ERR_CYCLE, 0);
+        } else if (type == Ex2Utils.ERR_FORM_FORMAT) {
+            setResult(c, type, Ex2Utils.ERR_FORM, 0);
+        } else {
+            setResult(c, type, null, number);
+            if (columns == null) {
+                c.setValue(type == Ex2Utils.TEXT ? c.getData() : String.valueOf(number));
+            }
+        }
+    }
+
+    /**
+     * Marks the current results of the cells as the evaluation of the current version of the sheet,
+     * so value(x, y) serves them without a full eval(). Only valid once every cell holds its current result
+     * (see restoreResult()). The restored cells are published as a change set.
+     */
+    public void markEvaluated() {
+        evaluatedVersion = version;
+        publishChanges();
+    }
+
+    /**
+     * Returns true iff the results of the cells are up to date, and value(x, y) does not need an eval().
+     * In on-demand mode every cell must have been computed as well (see getStaleCount()).
+     *
+     * @return true if the sheet is evaluated.
+     */
+    public boolean isEvaluated() {
+        return evaluatedVersion == version && staleCells == 0;
+    }
+
+    /**
+     * An edit recorded within a batch.
+     */
+    private record Edit(int x, int y, String text) {
+    }
+
+    /**
+     * Applies a new text to a cell: its data, its references and its ranges, without evaluating anything.
+     *
+     * @param c the edited cell.
+     * @param s the new text.
+     * @param unlinked the list to which the former precedents of the cell are added (see unlink()).
+     * @return true iff a reference (or a range) was removed, which might have broken a cycle.
+     */
+    private boolean apply(SCell c, String s, ArrayList<SCell> unlinked) {
+        boolean removed = unlink(c, unlinked);
+        int type = c.getType();
+        if (columns != null) {
+            editedTexts.putIfAbsent(c, c.getData());
+        }
+        c.setData(s);
+        // the type of the result changes when the cell is evaluated, and so counts as a change
+        c.setType(type);
+        link(c);
+        return removed;
+    }
+
+    /**
+     * Removes the given cell from the dependents of all of its precedents, and unregisters its ranges.
+     * The former precedents are not released here (see release()), the caller does it once they were recalculated.
+     *
+     * @param c the cell whose outgoing references are removed.
+     * @param unlinked the list to which the former precedents are added.
+     * @return true iff the cell had any reference.
+     */
+    private boolean unlink(SCell c, ArrayList<SCell> unlinked) {
+        for (Formula.Aggregate r : c.getRanges()) {
+            ranges.remove(c, r);
+            topoOrder.removeRangeEdge(r, c);
+        }
+        ArrayList<SCell> old = c.getPrecedents();
+        c.setPrecedents(new ArrayList<>());
+        for (SCell p : old) {
+            p.getDependents().remove(c);
+            topoOrder.removeEdge(p, c);
+            unlinked.add(p);
+        }
+        return !old.isEmpty() || !c.getRanges().isEmpty();
+    }
+
+    /**
+     * Adds the given cell to the dependents of every cell its formula refers to,
+     * and moves it after them in the topological order.
+     * Each precedent is kept once, even if the formula refers to it more than once.
+     *
+     * @param c the cell whose references are registered.
+     */
+    private void link(SCell c) {
+        ArrayList<SCell> refs = new ArrayList<>();
+        c.setPrecedents(refs);
+        for (SCell p : c.getReferences()) {
+            if (p.getDependents().add(c)) {
+                refs.add(p);
+                // false if the new reference closes a cycle
+                topoOrder.addEdge(p, c);
+            }
+        }
+        // a range is registered once, and ordered before c as a single range edge
+        for (Formula.Aggregate r : c.getRanges()) {
+            ranges.add(c, r);
+            topoOrder.addRangeEdge(r, storedCells(r), c);
+        }
+        if (topoOrder.needsCompaction()) {
+            topoOrder.compact(table);
+        }
+    }
+
+    /**
+     * Returns the successors of a cell: its dependents, and the cells whose ranges cover it (see SCell.getSuccessors()).
+     *
+     * @param c a cell of this sheet.
+     * @return the successors of c.
+     */
+    public Collection<SCell> successors(SCell c) {
+        if (ranges.isEmpty()) {
+            return c.getDependents();
+        }
+        ArrayList<SCell> ans = new ArrayList<>(c.getDependents());
+        ranges.collectDependents(c.getX(), c.getY(), ans);
+        return ans;
+    }
+
+    /**
+     * Returns the predecessors of a cell: its precedents, and the stored cells of its ranges (see SCell.getPredecessors()).
+     *
+     * @param c a cell of this sheet.
+     * @return the predecessors of c.
+     */
+    public Collection<SCell> predecessors(SCell c) {
+        if (c.getRanges().isEmpty()) {
+            return c.getPrecedents();
+        }
+        return new Predecessors(c);
+    }
+
+    /**
+     * Returns the stored cells of a range (within the sheet), without creating any.
+     * The cells are found while iterating, each time the range is iterated, without making a list of them.
+     */
+    private Iterable<SCell> storedCells(Formula.Aggregate r) {
+        return () -> {
+            int x2 = Math.min(r.getX2(), width - 1), y2 = Math.min(r.getY2(), height - 1);
+            long area = (long) (x2 - r.getX1() + 1) * (y2 - r.getY1() + 1);
+            if (area <= 0) {
+                return Collections.emptyIterator();
+            }
+            if (area > table.size()) {
+                // fewer stored cells than coordinates: filter the store
+                Iterator<SCell> all = table.iterator();
+                return new Lookahead() {
+                    @Override
+                    SCell find() {
+                        while (all.hasNext()) {
+                            SCell cell = all.next();
+                            if (r.contains(cell.getX(), cell.getY())) {
+                                return cell;
+                            }
                         }
+                        return null;
                     }
+                };
+            }
+            return new Lookahead() {
+                private int x = r.getX1(), y = r.getY1();
+
+                @Override
+                SCell find() {
+                    while (x <= x2) {
+                        SCell cell = table.get(x, y);
+                        if (++y > y2) {
+                            y = r.getY1();
+                            x++;
+                        }
+                        if (cell != null) {
+                            return cell;
+                        }
+                    }
+                    return null;
                 }
+            };
+        };
+    }
+
+    /**
+     * An iterator which finds its next cell only when asked for it.
+     */
+    private abstract static class Lookahead implements Iterator<SCell> {
+        private SCell next;
+        private boolean found = false;
+
+        /**
+         * Returns the next cell, or null at the end.
+         */
+        abstract SCell find();
+
+        @Override
+        public boolean hasNext() {
+            if (!found) {
+                next = find();
+                found = true;
+            }
+            return next != null;
+        }
+
+        @Override
+        public SCell next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            found = false;
+            return next;
         }
     }
 
     /**
-     * Evaluates all cells in the spreadsheet to update their values.
-     * Resets error states and processes each cell based on its type.
+     * The predecessors of a cell with range functions: its precedents, and then the stored cells of each range,
+     * iterated in place. The size is counted by iterating.
      */
-    @Override
-    public void eval() {
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                if (table[i][j] != null) {
-                    SCell cell = (SCell) table[i][j];
-                    cell.resetVisited();
-                    // Reset error states
-                    if (cell.getType() == Ex2Utils.ERR_CYCLE_FORM ||
-                            cell.getType() == Ex2Utils.ERR_FORM_FORMAT) {
-                        cell.setType(Ex2Utils.FORM);
+    private final class Predecessors extends AbstractCollection<SCell> {
+        private final SCell cell;
+
+        Predecessors(SCell cell) {
+            this.cell = cell;
+        }
+
+        @Override
+        public Iterator<SCell> iterator() {
+            Iterator<Formula.Aggregate> rs = cell.getRanges().iterator();
+            return new Lookahead() {
+                private Iterator<SCell> current = cell.getPrecedents().iterator();
+
+                @Override
+                SCell find() {
+                    while (!current.hasNext()) {
+                        if (!rs.hasNext()) {
+                            return null;
+                        }
+                        current = storedCells(rs.next()).iterator();
                     }
+                    return current.next();
                 }
+            };
+        }
+
+        @Override
+        public int size() {
+            int ans = 0;
+            for (Iterator<SCell> it = iterator(); it.hasNext(); it.next()) {
+                ans++;
             }
+            return ans;
         }
+    }
 
-        int[][] dd = depth();
+    /**
+     * Collects all the cells that depend (directly or transitively) on the given cell.
+     * Only the dependency graph is traversed, so the cost is proportional to the affected cells.
+     *
+     * @param c the changed cell.
+     * @return the dependents of c, in breadth first order (c itself is included only if it is on a cycle).
+     */
+    public ArrayList<SCell> getAllDependents(SCell c) {
+        ArrayList<SCell> ans = new ArrayList<>();
+        HashSet<SCell> seen = new HashSet<>();
+        ArrayDeque<SCell> queue = new ArrayDeque<>();
+        queue.add(c);
+        while (!queue.isEmpty()) {
+            SCell current = queue.poll();
+            for (SCell d : current.getSuccessors()) {
+                if (seen.add(d)) {
+                    ans.add(d);
+                    queue.add(d);
+                }
+            }
+        }
+        return ans;
+    }
 
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                if (dd[i][j] == -1) {
-                    SCell cell = (SCell) get(i, j);
-                    cell.setType(Ex2Utils.ERR_CYCLE_FORM);
-                    cell.setValue(Ex2Utils.ERR_CYCLE);
+    /**
+     * Updates all the cells that depend (directly or transitively) on the given cells:
+     * their cycles, their depths and their values, visiting them in topological order.
+     *
+     * @param changed the updated cells.
+     */
+    private void updateDependentCells(Collection<SCell> changed) {
+        updateCone(collectCone(changed), changed);
+    }
+
+    /**
+     * Collects the given cells and all the cells that depend on them, each one once.
+     */
+    private ArrayList<SCell> collectCone(Collection<SCell> changed) {
+        ArrayList<SCell> cone = new ArrayList<>(changed);
+        HashSet<SCell> seen = new HashSet<>(changed);
+        for (int i = 0; i < cone.size(); i++) {
+            for (SCell d : cone.get(i).getSuccessors()) {
+                if (seen.add(d)) {
+                    cone.add(d);
                 }
             }
         }
+        return cone;
+    }
+
+    /**
+     * Updates the cycles, the depths and the values of the cells of a cone (changed cells and all of their dependents).
+     * The propagation stops at the cells whose result did not change (see propagate()).
+     */
+    private void updateCone(ArrayList<SCell> cone, Collection<SCell> changed) {
+        HashSet<SCell> dirty = new HashSet<>(changed);
+        // Only the changed cells and their dependents can join (or leave) a cycle
+        CycleDetector.markCycles(cone);
+        if (metrics != null) {
+            metrics.cycleCheck();
+        }
+        DynamicTopoOrder.sort(cone);
 
-        for (int depth = 0; depth <= getMaxDepth(dd); depth++) {
-            for (int i = 0; i < width(); i++) {
-                for (int j = 0; j < height(); j++) {
-                    if (dd[i][j] == depth) {
-                        evaluateCell(i, j);
+        for (SCell cell : cone) {
+            int d = cell.getRangeDepth();
+            if (cell.isOnCycle()) {
+                d = Ex2Utils.ERR;
+            } else {
+                for (SCell p : cell.getPredecessors()) {
+                    if (p.getOrder() == Ex2Utils.ERR) {
+                        d = Ex2Utils.ERR;
+                        break;
                     }
+                    d = Math.max(d, p.getOrder() + 1);
                 }
             }
+            if (cell.getOrder() == Ex2Utils.ERR && d != Ex2Utils.ERR) {
+                // a cell which leaves a cycle has a result again
+                dirty.add(cell);
+            }
+            cell.setOrder(d);
+        }
+
+        for (SCell cell : cone) {
+            propagate(cell, cell.getOrder() == Ex2Utils.ERR, dirty);
         }
+        publishChanges();
     }
 
     /**
-     * Returns the maximum depth from the given depth matrix.
+     * Recalculates a cell if it is dirty (an edited cell, or a dependent of a cell whose result changed)
+     * or on (or after) a cycle, and then marks its dependents dirty if its result changed.
+     * So the propagation stops at the cells whose result (type and value) stayed the same,
+     * and a clean cell keeps its result (which is counted as a skipped evaluation).
+     * In on-demand mode a dirty formula is only marked stale (see demand()), and its dependents are dirty.
      *
-     * @param depths the depth matrix.
-     * @return the maximum depth value.
+     * @param cell the cell, visited in topological order.
+     * @param cycle true if the cell is on (or after) a cycle.
+     * @param dirty the dirty cells, or null to recalculate every cell.
      */
-    private int getMaxDepth(int[][] depths) {
-        int max = 0;
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                if (depths[i][j] > max) {
-                    max = depths[i][j];
+    private void propagate(SCell cell, boolean cycle, Set<SCell> dirty) {
+        if (dirty != null && !cycle && !dirty.contains(cell)) {
+            cell.keepResult(version);
+            if (metrics != null) {
+                metrics.evaluationSkipped();
+            }
+            return;
+        }
+        cell.invalidateResult();
+        if (onDemand && !cycle && cell.getDataType() == Ex2Utils.FORM) {
+            if (!cell.isStale()) {
+                cell.setStale(true);
+                staleCells++;
+                if (staleQueue.size() > 2 * staleCells + 1024) {
+                    // drop the cells which were computed since they were queued
+                    staleQueue.removeIf(q -> !q.isStale());
                 }
+                staleQueue.add(cell);
             }
+            if (dirty != null) {
+                dirty.addAll(cell.getSuccessors());
+            }
+        } else if (recalculate(cell, cycle) && dirty != null) {
+            dirty.addAll(cell.getSuccessors());
         }
-        return max;
     }
 
     /**
-     * Evaluates a specific cell at the given coordinates.
+     * Computes a stale cell and all of its stale precedents, in topological order (in on-demand mode).
+     * The precedents of a cell which is not stale are not stale either, so only stale cells are visited.
      *
-     * @param x the column index of the cell.
-     * @param y the row index of the cell.
+     * @param c the stale cell which is read.
+     * @return the number of computed cells.
      */
-    private void evaluateCell(int x, int y) {
-        SCell cell = (SCell) get(x, y);
-        if (cell == null) return;
+    private int demand(SCell c) {
+        ArrayList<SCell> pending = new ArrayList<>();
+        HashSet<SCell> seen = new HashSet<>();
+        pending.add(c);
+        seen.add(c);
+        for (int i = 0; i < pending.size(); i++) {
+            for (SCell p : pending.get(i).getPredecessors()) {
+                if (p.isStale() && seen.add(p)) {
+                    pending.add(p);
+                }
+            }
+        }
+        // the depths are up to date, so a precedent is computed before the cells which refer to it
+        pending.sort(Comparator.comparingInt(SCell::getOrder));
+        for (SCell cell : pending) {
+            recalculate(cell, false);
+        }
+        publishChanges();
+        return pending.size();
+    }
 
-        cell.setType(Ex2Utils.TEXT);
-        cell.setValue("");
-        cell.resetVisited();
+    /**
+     * Marks a cell as up to date (see setOnDemand()).
+     */
+    private void fresh(SCell cell) {
+        if (cell.isStale()) {
+            cell.setStale(false);
+            staleCells--;
+        }
+    }
 
-        String str = cell.getData();
-        if (str.isEmpty()) {
-            cell.setValue("");
-            cell.setType(Ex2Utils.TEXT);
-            return;
+    /**
+     * Evaluates all cells in the spreadsheet to update their values.
+     * Resets error states and processes each cell based on its type.
+     * After this call value(x, y) is served from the evaluated cells until the next change.
+     */
+    @Override
+    public void eval() {
+        evaluate(null);
+    }
+
+    /**
+     * Evaluates the whole sheet, as eval() does, or only from the given changed cells on (see propagate()).
+     *
+     * @param changed the changed cells of an evaluated sheet, or null to evaluate every cell.
+     */
+    private void evaluate(Collection<SCell> changed) {
+        long startTime = metrics == null ? 0 : System.nanoTime();
+        version++;
+        EvalScheduler scheduler = new EvalScheduler(table, topoOrder.getBound());
+        Set<SCell> dirty = null;
+        if (changed != null) {
+            // dependents of a level may be marked dirty concurrently in parallel mode
+            dirty = ConcurrentHashMap.newKeySet();
+            dirty.addAll(changed);
+        }
+
+        // Cycles can only be among the cells Kahn's algorithm could not schedule
+        ArrayList<SCell> unscheduled = scheduler.getUnscheduled();
+        for (SCell cell : table) {
+            int d = scheduler.getDepth(cell);
+            if (dirty != null && cell.getOrder() == Ex2Utils.ERR && d != Ex2Utils.ERR) {
+                dirty.add(cell);
+            }
+            cell.setOrder(d);
+            if (d == Ex2Utils.ERR) {
+                recalculate(cell, true);
+            } else {
+                cell.setOnCycle(false);
+            }
+        }
+        if (!unscheduled.isEmpty()) {
+            CycleDetector.markCycles(unscheduled);
+            if (metrics != null) {
+                metrics.cycleCheck();
+            }
         }
 
-        if (str.charAt(0) == '=') {
-            if (cell.isForm(str)) {
-                ArrayList<String> cyclePath = new ArrayList<>();
-                if (cell.detectCycle(cyclePath)) {
-                    cell.setType(Ex2Utils.ERR_CYCLE_FORM);
-                    cell.setValue(Ex2Utils.ERR_CYCLE);
+        ArrayList<SCell> order = scheduler.getOrder();
+        if (!parallel || onDemand) {
+            for (SCell cell : order) {
+                propagate(cell, false, dirty);
+            }
+        } else {
+            // the order is sorted by depth, each level is evaluated before the next one starts
+            int start = 0;
+            while (start < order.size()) {
+                int level = order.get(start).getOrder();
+                int end = start;
+                while (end < order.size() && order.get(end).getOrder() == level) {
+                    end++;
+                }
+                if (end - start < parallelThreshold) {
+                    for (int k = start; k < end; k++) {
+                        propagate(order.get(k), false, dirty);
+                    }
                 } else {
-                    try {
-                        String result = eval(x, y);
-                        cell.setValue(result);
-                        if (result.equals(Ex2Utils.ERR_FORM)) {
-                            cell.setType(Ex2Utils.ERR_FORM_FORMAT);
-                        } else {
-                            cell.setType(Ex2Utils.FORM);
+                    if (columns != null) {
+                        // the tasks write into the result columns, which must not be allocated concurrently
+                        for (int k = start; k < end; k++) {
+                            columns.allocate(order.get(k).getX());
                         }
-                    } catch (Exception e) {
-                        cell.setType(Ex2Utils.ERR_FORM_FORMAT);
-                        cell.setValue(Ex2Utils.ERR_FORM);
                     }
+                    ForkJoinPool.commonPool().invoke(new LevelTask(order, start, end, dirty));
+                }
+                start = end;
+            }
+        }
+        evaluatedVersion = version;
+        publishChanges();
+        if (metrics != null) {
+            metrics.fullRecalc(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Evaluates the cells [start, end) of a single dependency level, splitting the range across the pool.
+     * Cells of the same level do not depend on each other, so each task only writes its own cells
+     * (and their slots in the result columns, whose arrays are allocated before the tasks start).
+     */
+    @SuppressWarnings("serial") // a task only lives in the pool, it is never serialized
+    private class LevelTask extends RecursiveAction {
+        private final ArrayList<SCell> cells;
+        private final int start, end;
+        private final Set<SCell> dirty;
+
+        LevelTask(ArrayList<SCell> cells, int start, int end, Set<SCell> dirty) {
+            this.cells = cells;
+            this.start = start;
+            this.end = end;
+            this.dirty = dirty;
+        }
+
+        @Override
+        protected void compute() {
+            if (end - start <= PARALLEL_CHUNK) {
+                for (int k = start; k < end; k++) {
+                    propagate(cells.get(k), false, dirty);
                 }
             } else {
-                cell.setType(Ex2Utils.ERR_FORM_FORMAT);
-                cell.setValue(Ex2Utils.ERR_FORM);
+                int mid = (start + end) >>> 1;
+                invokeAll(new LevelTask(cells, start, mid, dirty), new LevelTask(cells, mid, end, dirty));
             }
-        } else if (cell.isNumber(str)) {
-            cell.setValue(Double.parseDouble(str) + "");
+        }
+    }
+
+    /**
+     * Evaluates a cell (or sets the cycle error of a cell on or after a cycle),
+     * and adds it to the current change set if its type or value changed.
+     *
+     * @param cell the cell to evaluate.
+     * @param cycle true to set the cycle error instead of evaluating.
+     * @return true iff the type or the value of the cell changed.
+     */
+    private boolean recalculate(SCell cell, boolean cycle) {
+        // only on the calling thread, since there are stale cells only in on-demand mode
+        fresh(cell);
+        int type = cell.getType();
+        int x = cell.getX(), y = cell.getY();
+        String value = columns == null ? cell.getValue() : null;
+        double number = columns == null ? 0 : columns.getValue(x, y);
+        if (cycle) {
+            setResult(cell, Ex2Utils.ERR_CYCLE_FORM, Ex2Utils.ERR_CYCLE, 0);
+        } else {
+            evaluateCell(cell);
+        }
+        boolean changed;
+        if (columns == null) {
+            changed = !Objects.equals(value, cell.getValue());
+        } else if (cell.getType() == Ex2Utils.TEXT) {
+            String before = editedTexts.get(cell);
+            changed = before != null && !before.equals(cell.getData());
+        } else {
+            changed = Double.doubleToLongBits(number) != Double.doubleToLongBits(columns.getValue(x, y));
+        }
+        if (changed || type != cell.getType()) {
+            changes.add(cell.getCoordinate());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Evaluates a specific cell.
+     *
+     * @param cell the cell to evaluate.
+     */
+    private void evaluateCell(SCell cell) {
+        if (metrics != null) {
+            metrics.cellEvaluated();
+        }
+
+        int dataType = cell.getDataType();
+        if (columns != null) {
+            evaluateColumnar(cell, dataType);
+        } else if (dataType == Ex2Utils.FORM) {
+            if (cell.isOnCycle()) {
+                cell.setType(Ex2Utils.ERR_CYCLE_FORM);
+                cell.setValue(Ex2Utils.ERR_CYCLE);
+            } else {
+                try {
+                    String result = eval(cell.getX(), cell.getY());
+                    cell.setValue(result);
+                    if (result.equals(Ex2Utils.ERR_FORM)) {
+                        cell.setType(Ex2Utils.ERR_FORM_FORMAT);
+                    } else {
+                        cell.setType(Ex2Utils.FORM);
+                    }
+                } catch (Exception e) {
+                    cell.setType(Ex2Utils.ERR_FORM_FORMAT);
+                    cell.setValue(Ex2Utils.ERR_FORM);
+                }
+            }
+        } else if (dataType == Ex2Utils.ERR_FORM_FORMAT) {
+            cell.setType(Ex2Utils.ERR_FORM_FORMAT);
+            cell.setValue(Ex2Utils.ERR_FORM);
+        } else if (dataType == Ex2Utils.NUMBER) {
+            cell.setValue(cell.getNumber() + "");
             cell.setType(Ex2Utils.NUMBER);
         } else {
-            cell.setValue(str);
+            cell.setValue(cell.getData());
             cell.setType(Ex2Utils.TEXT);
         }
     }
 
+    /**
+     * Evaluates a specific cell into the result columns, without making a string for a numeric result.
+     *
+     * @param cell the cell to evaluate.
+     * @param dataType the type of the cell's data.
+     */
+    private void evaluateColumnar(SCell cell, int dataType) {
+        if (dataType == Ex2Utils.FORM) {
+            if (cell.isOnCycle()) {
+                setResult(cell, Ex2Utils.ERR_CYCLE_FORM, Ex2Utils.ERR_CYCLE, 0);
+            } else {
+                try {
+                    setResult(cell, Ex2Utils.FORM, null, cell.computeForm());
+                } catch (SCell.ErrorCycle e) {
+                    setResult(cell, Ex2Utils.ERR_CYCLE_FORM, Ex2Utils.ERR_CYCLE, 0);
+                } catch (SCell.ErrorForm e) {
+                    setResult(cell, Ex2Utils.ERR_FORM_FORMAT, Ex2Utils.ERR_FORM, 0);
+                }
+            }
+        } else if (dataType == Ex2Utils.ERR_FORM_FORMAT) {
+            setResult(cell, Ex2Utils.ERR_FORM_FORMAT, Ex2Utils.ERR_FORM, 0);
+        } else if (dataType == Ex2Utils.NUMBER) {
+            setResult(cell, Ex2Utils.NUMBER, null, cell.getNumber());
+        } else {
+            setResult(cell, Ex2Utils.TEXT, null, 0);
+        }
+    }
+
+    /**
+     * Sets the result of a cell: its type, and either its string value or (in columnar mode) its numeric value.
+     *
+     * @param cell the evaluated cell.
+     * @param type the type of the result.
+     * @param error the error string of an error type (null otherwise).
+     * @param number the numeric value of a NUMBER or FORM result.
+     */
+    private void setResult(SCell cell, int type, String error, double number) {
+        cell.setType(type);
+        if (columns != null) {
+            columns.set(cell.getX(), cell.getY(), type, number);
+        } else if (error != null) {
+            cell.setValue(error);
+        }
+    }
+
     /**
      * Checks if the given coordinates are within the bounds of the spreadsheet.
      *
@@ -308,86 +1478,72 @@ public class Ex2Sheet implements Sheet {
 
     /**
      * Calculates the depth of each cell, determining the order of evaluation.
+     * The depths are maintained incrementally by set() (and recomputed by eval()), so no graph traversal is needed.
      *
      * @return a 2D array representing the depth of each cell.
      */
     @Override
     public int[][] depth() {
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                if (table[i][j] != null) {
-                    ((SCell) table[i][j]).resetVisited();
-                }
-            }
-        }
-
         int[][] ans = new int[width()][height()];
-
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                SCell cell = (SCell) get(i, j);
-                if (cell != null) {
-                    // calc order for this cell
-                    int order = cell.calcOrder();
-                    ans[i][j] = order;
-                    // Update this cell order
-                    cell.setOrder(order);
-                }
-            }
+        for (SCell cell : table) {
+            ans[cell.getX()][cell.getY()] = cell.getOrder();
         }
-        System.out.println(Arrays.deepToString(ans));
         return ans;
     }
 
     /**
      * Clears the entire table by setting all cells to empty and text type.
+     * Only the stored cells which are not empty are visited, and they are cleared in a single batch.
      */
     public void clearTable() {
-        for (int i = 0; i < width(); i++) {
-            for (int j = 0; j < height(); j++) {
-                set(i, j, "");
-                get(i, j).setType(Ex2Utils.TEXT);
+        beginBatch();
+        for (SCell cell : populatedCells()) {
+            set(cell.getX(), cell.getY(), "");
+        }
+        commit();
+    }
+
+    /**
+     * Returns the stored cells which are not empty, sorted by column and then by row.
+     *
+     * @return the cells with data, in the order of a saved file.
+     */
+    public ArrayList<SCell> populatedCells() {
+        ArrayList<SCell> ans = new ArrayList<>();
+        for (SCell cell : table) {
+            if (!cell.getData().isEmpty()) {
+                ans.add(cell);
             }
         }
+        ans.sort(Comparator.comparingInt(SCell::getX).thenComparingInt(SCell::getY));
+        return ans;
     }
 
     /**
-     * Loads spreadsheet data from a file and populates the cells.
+     * Loads spreadsheet data from a file and populates the cells, applying all of its lines in a single batch.
+     * The file is streamed and parsed by SheetLoader, or read by SheetSnapshot if it is a binary snapshot.
      *
      * @param fileName the name of the file to load the data from.
      * @throws IOException if an error occurs while reading the file.
      */
     @Override
     public void load(String fileName) throws IOException {
+        Path file = Path.of(fileName);
+        // the loaded cells are not journaled one by one: the journal starts over from a checkpoint of the loaded sheet
+        SheetJournal attached = journal;
+        journal = null;
         try {
-            clearTable();
-            File file = new File(fileName);
-            Scanner myReader = new Scanner(file);
-            if (!myReader.hasNext()) {
-                return;
-            }
-            String line = myReader.nextLine();
-            while (myReader.hasNextLine() && line != null) {
-                line = myReader.nextLine();
-                line = line.replaceAll(" ", "");
-                String[] arr = line.split(",");
-                if (arr.length < 3) {
-                    continue;
-                }
-                try {
-                    int x = Integer.parseInt(arr[0]);
-                    int y = Integer.parseInt(arr[1]);
-                    this.set(x, y, arr[2]);
-                } catch (Exception e) {
-                    System.out.println(e.getMessage());
-                }
-
+            if (Files.exists(file) && SheetSnapshot.isSnapshot(file)) {
+                SheetSnapshot.load(this, file);
+            } else {
+                SheetLoader.load(this, file);
             }
-            myReader.close();
-        } catch (IOException e) {
-            throw new IOException(e.getMessage());
+        } finally {
+            journal = attached;
+        }
+        if (attached != null) {
+            attached.checkpoint();
         }
-        eval();
     }
 
     /**
@@ -402,13 +1558,8 @@ public class Ex2Sheet implements Sheet {
             File newFile = new File(fileName);
             FileWriter myWriter = new FileWriter(newFile);
             myWriter.write("FirstLine\n");
-            for (int i = 0; i < width(); i++) {
-                for (int j = 0; j < height(); j++) {
-                    SCell cell = (SCell) get(i, j);
-                    if (cell != null && !cell.getData().isEmpty()) {
-                        myWriter.write(i + "," + j + "," + cell.getData() + "\n");
-                    }
-                }
+            for (SCell cell : populatedCells()) {
+                myWriter.write(cell.getX() + "," + cell.getY() + "," + cell.getData() + "\n");
             }
             myWriter.close();
         } catch (Exception e) {
@@ -428,9 +1579,8 @@ public class Ex2Sheet implements Sheet {
         String ans = null;
         SCell cell = (SCell) get(x, y);
         if (cell != null) {
-            ans = cell.toString();
             try {
-                ans = String.valueOf(cell.computeForm(ans));
+                ans = String.valueOf(cell.computeForm());
             } catch (SCell.ErrorForm e) {
                 ans = Ex2Utils.ERR_FORM;
             } catch (SCell.ErrorCycle e) {
@@ -440,4 +1590,49 @@ public class Ex2Sheet implements Sheet {
         }
         return ans;
     }
-}
\ No newline at end of file
+
+    /**
+     * The cell read at any coordinate a sparse spreadsheet does not store: empty, TEXT and read-only.
+     */
+    private static final class EmptyCell extends SCell {
+        EmptyCell(Ex2Sheet sheet) {
+            super("", sheet);
+        }
+
+        @Override
+        public void setData(String s) {
+        }
+
+        @Override
+        public String getData() {
+            return "";
+        }
+
+        @Override
+        public String toString() {
+            return "";
+        }
+
+        @Override
+        public void setValue(String v) {
+        }
+
+        @Override
+        public String getValue() {
+            return "";
+        }
+
+        @Override
+        public int getType() {
+            return Ex2Utils.TEXT;
+        }
+
+        @Override
+        public void setType(int t) {
+        }
+
+        @Override
+        public void setOrder(int t) {
+        }
+    }
+}
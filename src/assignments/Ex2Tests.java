@@ -1,7 +1,19 @@
 import org.junit.jupiter.api.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -475,4 +487,1200 @@ class Ex2Tests {
         sheet.eval();
         assertEquals("-2.0", sheet.value(2, 1));  // 2*3=6, 4*(-2)=-8, 6+(-8)=-2
     }
+    @Test
+    void testFormulaParsedOnce() {
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "4");
+        sheet.set(0, 1, "=2*(A0-1)");
+        SCell cell = (SCell) sheet.get(0, 1);
+        Formula parsed = cell.getFormula();
+        assertNotNull(parsed, "A valid formula should be parsed");
+
+        // Same text: the cached tree is kept
+        sheet.set(0, 1, "=2*(A0-1)");
+        assertSame(parsed, cell.getFormula());
+        assertEquals("6.0", sheet.value(0, 1));
+
+        // New text: the formula is parsed again
+        sheet.set(0, 1, "=-(A0)");
+        assertNotSame(parsed, cell.getFormula());
+        assertEquals("-4.0", sheet.value(0, 1));
+    }
+    @Test
+    void testNonFiniteBrackets() {
+        for (int threshold : new int[]{0, 1}) {
+            Ex2Sheet sheet = new Ex2Sheet(6, 5);
+            sheet.setCompileThreshold(threshold);
+            String[] forms = {"=1/0", "=((1/0.0))", "=2*(A0*0)", "=A0", "=-(A0)", "=(A0-1)+(3)"};
+            String[] values = {"Infinity", Ex2Utils.ERR_FORM, Ex2Utils.ERR_FORM, "Infinity", Ex2Utils.ERR_FORM,
+                    Ex2Utils.ERR_FORM};
+            for (int x = 0; x < forms.length; x++) {
+                sheet.set(x, 0, forms[x]);
+            }
+            for (int round = 0; round < 3; round++) {
+                sheet.eval();
+                for (int x = 0; x < forms.length; x++) {
+                    assertEquals(values[x], sheet.value(x, 0), forms[x]);
+                }
+            }
+            sheet.set(0, 0, "4");
+            assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0));
+            assertEquals("0.0", sheet.value(2, 0));
+            assertEquals("-4.0", sheet.value(4, 0));
+            assertEquals("6.0", sheet.value(5, 0));
+        }
+    }
+    @Test
+    void testDependencyGraph() {
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0+1");
+        sheet.set(0, 2, "=A1*2");
+        sheet.set(1, 0, "=A0");
+        SCell a0 = (SCell) sheet.get(0, 0);
+        SCell a1 = (SCell) sheet.get(0, 1);
+
+        ArrayList<SCell> deps = sheet.getAllDependents(a0);
+        assertEquals(3, deps.size(), "A1, A2 and B0 depend on A0");
+        assertTrue(deps.contains(sheet.get(0, 2)));
+
+        // Replacing the formula removes the old edge
+        sheet.set(0, 1, "5");
+        assertFalse(a0.getDependents().contains(a1));
+        assertEquals(1, sheet.getAllDependents(a0).size(), "Only B0 depends on A0");
+        assertEquals(1, sheet.getAllDependents(a1).size(), "A2 still depends on A1");
+    }
+    @Test
+    void testCycleCreatedOnEvaluatedSheet() {
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(2, 0, "=D0");
+        sheet.set(3, 0, "5");
+        sheet.eval();
+        assertEquals("5.0", sheet.value(2, 0));
+
+        // Closing the cycle after the sheet was evaluated
+        sheet.set(3, 0, "=C0");
+        sheet.eval();
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(2, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(3, 0));
+    }
+    @Test
+    void testDiamondDependencies() {
+        // A 20-level binary diamond: every row sums both cells of the previous row
+        int levels = 20;
+        Ex2Sheet sheet = new Ex2Sheet(2, levels + 1);
+        sheet.set(0, 0, "1");
+        sheet.set(1, 0, "1");
+        for (int y = 1; y <= levels; y++) {
+            String form = "=A" + (y - 1) + "+B" + (y - 1);
+            sheet.set(0, y, form);
+            sheet.set(1, y, form);
+        }
+        SheetMetrics metrics = new SheetMetrics();
+        sheet.setMetrics(metrics);
+        sheet.eval();
+        assertEquals(String.valueOf(Math.pow(2, levels)), sheet.value(0, levels));
+        assertEquals(2L * (levels + 1), metrics.getCellsEvaluated(), "Each cell should be computed once");
+    }
+    @Test
+    void testValueIsCachedUntilChange() {
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "3");
+        sheet.set(0, 1, "=A0*2");
+        assertEquals("6.0", sheet.value(0, 1));
+        int version = sheet.getVersion();
+        for (int i = 0; i < sheet.width(); i++) {
+            for (int j = 0; j < sheet.height(); j++) {
+                sheet.value(i, j);
+            }
+        }
+        assertEquals(version, sheet.getVersion(), "No evaluation without a change");
+
+        sheet.set(0, 0, "4");
+        assertEquals("8.0", sheet.value(0, 1));
+    }
+    @Test
+    void testDepthOfLongChain() {
+        Ex2Sheet sheet = new Ex2Sheet(2, 100);
+        sheet.set(0, 0, "1");
+        for (int y = 1; y < 100; y++) {
+            sheet.set(0, y, "=A" + (y - 1) + "+1");
+        }
+        sheet.set(1, 0, "=B1");
+        sheet.set(1, 1, "=B0");
+        sheet.set(1, 2, "=B1+A99");
+
+        int[][] depth = sheet.depth();
+        assertEquals(99, depth[0][99]);
+        assertEquals(-1, depth[1][0], "B0 is on a cycle");
+        assertEquals(-1, depth[1][2], "B2 depends on a cycle");
+        assertEquals(0, depth[1][3], "Empty cells have depth 0");
+
+        sheet.eval();
+        assertEquals("100.0", sheet.value(0, 99));
+    }
+    @Test
+    void testParallelEvalMatchesSerial() {
+        Ex2Sheet serial = new Ex2Sheet(26, 99);
+        Ex2Sheet parallel = new Ex2Sheet(26, 99);
+        parallel.setParallel(true);
+        parallel.setParallelThreshold(1);
+        Ex2Sheet columnar = new Ex2Sheet(26, 99);
+        columnar.setParallel(true);
+        columnar.setParallelThreshold(1);
+        columnar.setColumnar(true);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{serial, parallel, columnar}) {
+            sheet.set(0, 0, "2");
+            sheet.set(1, 0, "text");
+            for (int x = 0; x < 26; x++) {
+                for (int y = 1; y < 99; y++) {
+                    String form;
+                    if (y % 2 == 1) {
+                        form = "=A0*" + x + "+" + y;
+                    } else {
+                        form = "=" + Ex2Utils.ABC[x] + (y - 1) + "/2+" + Ex2Utils.ABC[(x + 1) % 26] + (y - 1);
+                    }
+                    sheet.set(x, y, form);
+                }
+            }
+            sheet.set(2, 0, "=B0+1");
+            sheet.set(3, 0, "=D1");
+            sheet.eval();
+        }
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 99; y++) {
+                assertEquals(serial.value(x, y), parallel.value(x, y), "Mismatch at " + x + "," + y);
+                assertEquals(serial.get(x, y).getType(), parallel.get(x, y).getType());
+                assertEquals(serial.value(x, y), columnar.value(x, y), "Columnar mismatch at " + x + "," + y);
+                assertEquals(serial.get(x, y).getType(), columnar.get(x, y).getType());
+            }
+        }
+
+        // a single level of numbers, whose columns are all allocated by the parallel level
+        Ex2Sheet numbers = new Ex2Sheet(4, 20000);
+        numbers.setParallel(true);
+        numbers.setParallelThreshold(1);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 20000; y++) {
+                numbers.set(x, y, "" + (x + y));
+            }
+        }
+        // the columns are made empty, and filled by the next full evaluation
+        numbers.setColumnar(true);
+        numbers.eval();
+        ColumnStore results = numbers.getColumns();
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 20000; y++) {
+                assertEquals(Ex2Utils.NUMBER, results.getType(x, y), "Lost result at " + x + "," + y);
+                assertEquals(x + y, results.getValue(x, y));
+            }
+        }
+    }
+    @Test
+    void testCycleMembersMarked() {
+        Ex2Sheet sheet = new Ex2Sheet(3, 99);
+        // A long cycle A0 -> A1 -> ... -> A98 -> A0
+        for (int y = 0; y < 99; y++) {
+            sheet.set(0, y, "=A" + ((y + 1) % 99) + "+1");
+        }
+        sheet.set(1, 0, "=A5*2");  // depends on the cycle
+        sheet.set(2, 0, "=C0");    // refers to itself
+        sheet.set(2, 1, "=B0");
+        sheet.eval();
+
+        for (int y = 0; y < 99; y++) {
+            assertTrue(((SCell) sheet.get(0, y)).isOnCycle());
+            assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get(0, y).getType());
+        }
+        assertFalse(((SCell) sheet.get(1, 0)).isOnCycle(), "B0 is not a member of the cycle");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 0));
+        assertTrue(((SCell) sheet.get(2, 0)).isOnCycle());
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(2, 1));
+
+        // Breaking the cycle
+        sheet.set(0, 98, "1");
+        assertFalse(((SCell) sheet.get(0, 0)).isOnCycle());
+        assertEquals("99.0", sheet.value(0, 0));
+        assertEquals("188.0", sheet.value(1, 0));
+    }
+    @Test
+    void testIncrementalOrderAndCycles() {
+        Ex2Sheet sheet = new Ex2Sheet(1, 99);
+        // Each formula refers to a cell which is after it in the initial order
+        for (int y = 0; y < 98; y++) {
+            sheet.set(0, y, "=A" + (y + 1) + "+1");
+        }
+        sheet.set(0, 98, "1");
+        for (int y = 0; y < 98; y++) {
+            SCell cell = (SCell) sheet.get(0, y);
+            SCell next = (SCell) sheet.get(0, y + 1);
+            assertTrue(next.getTopoIndex() < cell.getTopoIndex(), "A precedent is ordered first");
+        }
+        int version = sheet.getVersion();
+        assertEquals("99.0", sheet.value(0, 0));
+        assertEquals(98, sheet.depth()[0][0]);
+
+        // Closing a cycle is detected by the edit itself
+        sheet.set(0, 98, "=A0");
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, sheet.get(0, 50).getType());
+        assertEquals(-1, sheet.depth()[0][98]);
+        sheet.set(0, 98, "2");
+        assertEquals("100.0", sheet.value(0, 0));
+        assertEquals(98, sheet.depth()[0][0]);
+        assertEquals(version, sheet.getVersion(), "Edits do not trigger a full evaluation");
+    }
+    @Test
+    void testOrderAfterRowByRowFill() {
+        // every cell refers to the row above it, against the initial column by column order
+        Ex2Sheet sheet = new Ex2Sheet(26, 60);
+        for (int x = 0; x < 26; x++) {
+            sheet.set(x, 0, "" + x);
+        }
+        for (int y = 1; y < 60; y++) {
+            for (int x = 0; x < 26; x++) {
+                sheet.set(x, y, "=" + Ex2Utils.ABC[x] + (y - 1) + "+" + Ex2Utils.ABC[(x + 1) % 26] + (y - 1));
+            }
+        }
+        int[][] incremental = sheet.depth();
+        String last = sheet.value(0, 59);
+        sheet.eval();
+        assertArrayEquals(sheet.depth(), incremental);
+        assertEquals(last, sheet.value(0, 59));
+        assertEquals(59, incremental[7][59]);
+        sheet.set(3, 0, "=D59");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(3, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(0, 59));
+        sheet.set(3, 0, "3");
+        assertEquals(last, sheet.value(0, 59));
+    }
+    @Test
+    void testMetrics() {
+        Ex2Sheet sheet = new Ex2Sheet();
+        SheetMetrics metrics = new SheetMetrics();
+        ArrayList<String> reports = new ArrayList<>();
+        metrics.setReporter(m -> reports.add(m.toString()));
+        sheet.setMetrics(metrics);
+
+        sheet.set(0, 0, "2");
+        sheet.set(0, 1, "=A0*3");
+        sheet.set(0, 2, "=A1+A1");
+        sheet.eval();
+
+        assertEquals(3, metrics.getIncrementalRecalcs());
+        assertEquals(1, metrics.getFullRecalcs());
+        assertEquals(2, metrics.getParses());
+        assertTrue(metrics.getCacheHits() > 0, "A2 reads the stored result of A1");
+        assertEquals(3, metrics.getCycleChecks());
+        assertEquals(3 + sheet.width() * sheet.height(), metrics.getCellsEvaluated());
+        assertEquals(1, metrics.getFullRecalcLatency().getCount());
+        assertEquals(4, reports.size());
+
+        sheet.setMetrics(null);
+        sheet.eval();
+        assertEquals(1, metrics.getFullRecalcs(), "Metrics are off");
+    }
+
+    @Test
+    void testSparseSheet() throws IOException {
+        Ex2Sheet sparse = new Ex2Sheet(26, 99, true);
+        Ex2Sheet dense = new Ex2Sheet(26, 99);
+        assertTrue(sparse.isSparse());
+        assertEquals(0, sparse.getCellCount());
+        assertSame(sparse.get(3, 4), sparse.get(20, 90), "Empty coordinates share a single empty cell");
+        assertEquals("", sparse.value(25, 98));
+
+        String[][] data = {{"0", "0", "5"}, {"25", "98", "=A0*2"}, {"3", "50", "=Z98+D51"}, {"1", "1", "hello"}};
+        for (String[] d : data) {
+            sparse.set(Integer.parseInt(d[0]), Integer.parseInt(d[1]), d[2]);
+            dense.set(Integer.parseInt(d[0]), Integer.parseInt(d[1]), d[2]);
+        }
+        // D51 is empty but referred to, so it is stored as well
+        assertEquals(5, sparse.getCellCount());
+        assertEquals(Ex2Utils.ERR_FORM, sparse.value(3, 50));
+        sparse.set(3, 51, "1");
+        dense.set(3, 51, "1");
+        assertEquals("11.0", sparse.value(3, 50));
+        sparse.eval();
+        dense.eval();
+        for (int x = 0; x < 26; x++) {
+            for (int y = 0; y < 99; y++) {
+                assertEquals(dense.value(x, y), sparse.value(x, y), "cell " + x + "," + y);
+            }
+        }
+        assertArrayEquals(dense.depth(), sparse.depth());
+
+        // cycles work the same way
+        sparse.set(0, 0, "=D50");
+        assertEquals(Ex2Utils.ERR_CYCLE, sparse.value(0, 0));
+        sparse.set(0, 0, "5");
+        assertEquals("10.0", sparse.value(25, 98));
+
+        // a cleared cell is dropped once nothing refers to it
+        sparse.set(3, 50, "");
+        assertEquals(4, sparse.getCellCount());
+        sparse.get(7, 7).setData("=1");
+        assertEquals("", sparse.value(7, 7), "The empty cell ignores changes");
+
+        File file = File.createTempFile("sparse", ".txt");
+        file.deleteOnExit();
+        sparse.save(file.getPath());
+        Ex2Sheet loaded = new Ex2Sheet(26, 99, true);
+        loaded.load(file.getPath());
+        assertEquals(sparse.getCellCount(), loaded.getCellCount());
+        assertEquals("10.0", loaded.value(25, 98));
+        loaded.clearTable();
+        assertEquals(0, loaded.getCellCount());
+        assertThrows(IndexOutOfBoundsException.class, () -> loaded.set(26, 0, "1"));
+    }
+
+    @Test
+    void testColumnarResults() {
+        Ex2Sheet columnar = new Ex2Sheet(Ex2Utils.WIDTH, Ex2Utils.HEIGHT, true);
+        Ex2Sheet strings = new Ex2Sheet();
+        columnar.setColumnar(true);
+        assertTrue(columnar.isColumnar());
+        String[] data = {"3", "=A0*2", "=A1/0", "hello", "=A3+1", "=(", "=A6", "-2.5", "=A7-A1"};
+        for (int y = 0; y < data.length; y++) {
+            columnar.set(0, y, data[y]);
+            strings.set(0, y, data[y]);
+        }
+        columnar.eval();
+        for (int y = 0; y < data.length; y++) {
+            assertEquals(strings.value(0, y), columnar.value(0, y), "row " + y);
+            assertEquals(strings.get(0, y).getType(), columnar.get(0, y).getType(), "row " + y);
+        }
+        assertEquals("6.0", ((SCell) columnar.get(0, 1)).getValue());
+
+        ColumnStore columns = columnar.getColumns();
+        assertEquals(6.0, columns.getValues(0)[1]);
+        assertEquals(Ex2Utils.FORM, columns.getTypes(0)[1]);
+        assertEquals(Ex2Utils.NUMBER, columns.getType(0, 7));
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, columns.getType(0, 6));
+        assertNull(columns.getValues(5), "An empty column of a sparse sheet is never allocated");
+
+        columnar.set(0, 0, "4");
+        assertEquals("8.0", columnar.value(0, 1));
+        assertEquals(8.0, columns.getValue(0, 1));
+
+        columnar.setColumnar(false);
+        assertEquals("8.0", columnar.value(0, 1));
+        assertEquals(Ex2Utils.ERR_CYCLE, columnar.value(0, 6));
+
+        // a cell dropped from a sparse sheet leaves no result behind
+        Ex2Sheet sparse = new Ex2Sheet(5, 5, true);
+        sparse.setColumnar(true);
+        sparse.set(0, 0, "5");
+        sparse.set(1, 0, "=A0");
+        assertEquals("5.0", sparse.value(0, 0));
+        sparse.clearTable();
+        assertEquals(0, sparse.getCellCount());
+        assertEquals("", sparse.value(0, 0));
+        assertEquals("", sparse.value(1, 0));
+        assertEquals(0, sparse.getColumns().getType(0, 0));
+        sparse.set(2, 0, "=SUM(A0:B0)");
+        assertEquals("0.0", sparse.value(2, 0));
+    }
+
+    @Test
+    void testCellAddress() {
+        assertEquals(CellAddress.pack(0, 0), CellAddress.parse("A0"));
+        assertEquals(CellAddress.pack(26, 17), CellAddress.parse("AA17"));
+        assertEquals(CellAddress.pack(16383, 1048575), CellAddress.parse("XFD1048575"));
+        assertEquals(CellAddress.INVALID, CellAddress.parse("ABCD1"));
+        assertEquals(CellAddress.INVALID, CellAddress.parse("A"));
+        assertEquals(CellAddress.INVALID, CellAddress.parse("1A"));
+        assertEquals(CellAddress.INVALID, CellAddress.parse("a1"));
+        assertEquals(CellAddress.INVALID, CellAddress.parse("AA1", 0, 3, 26, 100));
+        assertEquals(CellAddress.pack(2, 3), CellAddress.parse("=C3+1", 1, 3, 26, 100));
+        for (int x : new int[]{0, 25, 26, 51, 701, 702, 16383, CellAddress.MAX_WIDTH - 1}) {
+            String name = CellAddress.format(x, 123456);
+            assertEquals(CellAddress.pack(x, 123456), CellAddress.parse(name), name);
+        }
+        assertEquals("ZZ", CellAddress.columnName(701));
+        assertEquals("AAA", CellAddress.columnName(702));
+
+        CellEntry entry = new CellEntry("AB20000", 1000, 100000);
+        assertTrue(entry.isValid());
+        assertEquals(27, entry.getX());
+        assertEquals(20000, entry.getY());
+        assertEquals("AB20000", new CellEntry(27, 20000).toString());
+    }
+
+    @Test
+    void testLargeSheetAddresses() {
+        Ex2Sheet sheet = new Ex2Sheet(16384, 1048576, true);
+        sheet.set(16383, 1048575, "4");
+        sheet.set(26, 0, "=XFD1048575*2+AA1");
+        sheet.set(26, 1, "=1");
+        assertEquals("9.0", sheet.value(26, 0));
+        assertEquals("4.0", sheet.value(CellAddress.x(CellAddress.parse("XFD1048575")), 1048575));
+        assertSame(sheet.get("AA0"), sheet.get(CellAddress.pack(26, 0)));
+        assertEquals("=XFD1048575*2+AA1", sheet.get("aa0".toUpperCase()).getData());
+        assertNull(sheet.get("XFE0"), "Beyond the last column");
+        sheet.set(27, 0, "=XFE0");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(27, 0));
+        assertEquals(4, sheet.getCellCount());
+
+        // a classic sheet keeps the classic references
+        Ex2Sheet classic = new Ex2Sheet();
+        classic.set(0, 0, "=AA1");
+        assertEquals(Ex2Utils.ERR_FORM, classic.value(0, 0));
+        classic.set(0, 0, "=Z99");
+        assertEquals(Ex2Utils.ERR_FORM, classic.value(0, 0));
+        assertEquals(Ex2Utils.FORM, ((SCell) classic.get(0, 0)).getDataType());
+    }
+
+    @Test
+    void testCompiledFormulasMatchInterpreter() {
+        String[] data = {"3", "=A0*2-(A0/4)", "=A1/0", "hello", "=A3+1", "=-(A0+-A1)*3/(2-1)",
+                "=A7", "=A6", "=B0", "=A0/(A0-3)+A2", "=A3/0", "=A0+Z99"};
+        Ex2Sheet interpreted = new Ex2Sheet();
+        for (int threshold = 1; threshold <= 2; threshold++) {
+            for (boolean columnar : new boolean[]{false, true}) {
+                Ex2Sheet compiled = new Ex2Sheet();
+                compiled.setColumnar(columnar);
+                compiled.setCompileThreshold(threshold);
+                for (int y = 0; y < data.length; y++) {
+                    interpreted.set(0, y, data[y]);
+                    compiled.set(0, y, data[y]);
+                }
+                for (int round = 0; round < 3; round++) {
+                    interpreted.eval();
+                    compiled.eval();
+                    for (int y = 0; y < data.length; y++) {
+                        assertEquals(interpreted.value(0, y), compiled.value(0, y), "row " + y);
+                    }
+                }
+                assertTrue(((SCell) compiled.get(0, 1)).isCompiled());
+                assertFalse(((SCell) compiled.get(0, 4)).isCompiled(), "A text reference never computes");
+
+                // an edit drops the compiled form, and changes the value read by the compiled dependents
+                compiled.set(0, 0, "5");
+                interpreted.set(0, 0, "5");
+                assertFalse(((SCell) compiled.get(0, 0)).isCompiled());
+                assertEquals(interpreted.value(0, 1), compiled.value(0, 1));
+                assertEquals(interpreted.value(0, 9), compiled.value(0, 9));
+                compiled.set(0, 0, "text");
+                assertEquals(Ex2Utils.ERR_FORM, compiled.value(0, 1));
+            }
+        }
+        Ex2Sheet off = new Ex2Sheet();
+        off.set(0, 0, "=1+2");
+        off.eval();
+        off.eval();
+        assertFalse(((SCell) off.get(0, 0)).isCompiled(), "Compilation is off by default");
+    }
+
+    @Test
+    void testRangeFunctions() {
+        Ex2Sheet sheet = new Ex2Sheet();
+        sheet.set(0, 0, "4");
+        sheet.set(0, 1, "=A0*2");
+        sheet.set(0, 2, "hello");
+        sheet.set(0, 4, "-1");
+        sheet.set(1, 0, "=SUM(A0:A5)");
+        sheet.set(1, 1, "=avg(a0:a5)");
+        sheet.set(1, 2, "=MIN(A0:A5)");
+        sheet.set(1, 3, "=MAX(A5:A0)");
+        sheet.set(1, 4, "=COUNT(A0:A5)");
+        sheet.set(1, 5, "=SUM(A0:B0)+SUM(A1)*2-1");
+        assertEquals("11.0", sheet.value(1, 0));
+        assertEquals("3.6666666666666665", sheet.value(1, 1));
+        assertEquals("-1.0", sheet.value(1, 2));
+        assertEquals("8.0", sheet.value(1, 3));
+        assertEquals("3.0", sheet.value(1, 4));
+        assertEquals("45.0", sheet.value(1, 5), "No operator precedence: ((15+8)*2)-1");
+
+        // a range is registered as a whole, not as an edge per cell
+        assertTrue(((SCell) sheet.get(1, 0)).getPrecedents().isEmpty());
+        assertTrue(((SCell) sheet.get(0, 3)).getDependents().isEmpty());
+        assertEquals(1, sheet.depth()[1][0] - sheet.depth()[0][1]);
+
+        // a change in the range updates the functions
+        sheet.set(0, 3, "10");
+        assertEquals("21.0", sheet.value(1, 0));
+        assertEquals("10.0", sheet.value(1, 3));
+        sheet.set(0, 0, "=1/0");
+        assertEquals("Infinity", sheet.value(1, 0));
+        sheet.set(0, 0, "=(");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0), "An error in the range is an error of the function");
+        sheet.set(0, 0, "");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(0, 1));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(1, 0));
+        sheet.set(0, 1, "");
+        assertEquals("9.0", sheet.value(1, 0));
+        sheet.set(2, 0, "=AVG(C1:C5)");
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(2, 0), "The average of no number");
+
+        // cycles through a range
+        sheet.set(0, 5, "=B0");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(1, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(0, 5));
+        sheet.set(0, 5, "1");
+        assertEquals("10.0", sheet.value(1, 0));
+        sheet.set(3, 3, "=SUM(C0:D5)");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(3, 3));
+        sheet.eval();
+        assertEquals("10.0", sheet.value(1, 0));
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(3, 3));
+
+        String[] invalid = {"=SUM(A0:)", "=FOO(A0:A1)", "=SUM()", "=SUM(A0:A1", "=SUM(A0;A1)", "=SUM(A0:A1)2", "=SUM A0"};
+        for (String form : invalid) {
+            sheet.set(4, 0, form);
+            assertEquals(Ex2Utils.ERR_FORM, sheet.value(4, 0), form);
+        }
+    }
+
+    @Test
+    void testRangeFunctionsAcrossModes() {
+        Ex2Sheet plain = new Ex2Sheet(26, 99);
+        Ex2Sheet fast = new Ex2Sheet(26, 99, true);
+        fast.setColumnar(true);
+        fast.setCompileThreshold(1);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{plain, fast}) {
+            sheet.set(1, 0, "=SUM(A0:A98)");
+            sheet.set(1, 1, "=MAX(A0:A98)-MIN(A0:A98)+COUNT(A0:A98)");
+            sheet.set(1, 2, "=B0/AVG(A10:A20)");
+            for (int y = 0; y < 99; y += 3) {
+                sheet.set(0, y, y % 2 == 0 ? "" + y : "=A" + (y - 3) + "+1");
+            }
+        }
+        // the cells of the range were created after the functions, in the sparse sheet
+        for (int round = 0; round < 3; round++) {
+            for (int y = 0; y < 3; y++) {
+                assertEquals(plain.value(1, y), fast.value(1, y), "B" + y);
+            }
+            plain.eval();
+            fast.eval();
+        }
+        assertTrue(((SCell) fast.get(1, 2)).isCompiled());
+        plain.set(0, 50, "100");
+        fast.set(0, 50, "100");
+        assertEquals(plain.value(1, 0), fast.value(1, 0));
+        assertEquals(plain.value(1, 1), fast.value(1, 1));
+        assertArrayEquals(plain.depth(), fast.depth());
+
+        // a range over empty cells has the same depth whether they are stored or not
+        Ex2Sheet dense = new Ex2Sheet(5, 6);
+        Ex2Sheet sparse = new Ex2Sheet(5, 6, true);
+        for (Ex2Sheet sheet : new Ex2Sheet[]{dense, sparse}) {
+            sheet.set(2, 4, "=SUM(C0:C3)");
+            sheet.set(3, 0, "=C4+1");
+            sheet.set(4, 0, "=SUM(E2:E5)+A0");
+            assertEquals(1, sheet.depth()[2][4]);
+            assertEquals(2, sheet.depth()[3][0]);
+            assertEquals(1, sheet.depth()[4][0]);
+        }
+        assertArrayEquals(dense.depth(), sparse.depth());
+    }
+    @Test
+    void testBatchEdits() {
+        String[][] edits = {{"A0", "2"}, {"A1", "=A0*3"}, {"B0", "=A1+A0"}, {"B1", "=B0/A0"},
+                {"A0", "4"}, {"C0", "=SUM(A0:B1)"}, {"C1", "=C1"}};
+        Ex2Sheet plain = new Ex2Sheet(5, 5);
+        Ex2Sheet batched = new Ex2Sheet(5, 5);
+        for (String[] e : edits) {
+            CellEntry c = new CellEntry(e[0]);
+            plain.set(c.getX(), c.getY(), e[1]);
+        }
+        SheetMetrics metrics = new SheetMetrics();
+        batched.setMetrics(metrics);
+        batched.beginBatch();
+        batched.beginBatch();
+        for (String[] e : edits) {
+            CellEntry c = new CellEntry(e[0]);
+            batched.set(c.getX(), c.getY(), e[1]);
+        }
+        batched.commit();
+        // still within the outer batch: nothing was applied
+        assertTrue(batched.isInBatch());
+        assertEquals("", batched.get(0, 0).getData());
+        assertEquals("", batched.value(2, 0));
+        batched.commit();
+        assertFalse(batched.isInBatch());
+        assertEquals(1, metrics.getIncrementalRecalcs() + metrics.getFullRecalcs(), "A single recalculation");
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                assertEquals(plain.value(x, y), batched.value(x, y));
+                assertEquals(plain.get(x, y).getType(), batched.get(x, y).getType());
+            }
+        }
+        assertEquals("4", batched.get(0, 0).getData(), "The last edit of a cell wins");
+        assertEquals(Ex2Utils.ERR_CYCLE_FORM, batched.get(2, 1).getType());
+
+        // an edit of a cell with dependents, within a batch
+        batched.beginBatch();
+        batched.set(0, 0, "1");
+        assertEquals("12.0", batched.value(0, 1));
+        batched.commit();
+        assertEquals("3.0", batched.value(0, 1));
+        assertEquals("4.0", batched.value(1, 0));
+
+        batched.clearTable();
+        assertEquals("", batched.value(2, 0));
+        assertEquals(Ex2Utils.TEXT, batched.get(0, 1).getType());
+        assertThrows(IllegalStateException.class, batched::commit);
+
+        // a sparse batch empties a cell and its only reference: the range over it is still updated
+        for (boolean sparse : new boolean[]{false, true}) {
+            Ex2Sheet sheet = new Ex2Sheet(5, 5, sparse);
+            sheet.set(0, 0, "5");
+            sheet.set(1, 0, "=A0");
+            sheet.set(2, 0, "=SUM(A0:A2)");
+            assertEquals("5.0", sheet.value(2, 0));
+            sheet.beginBatch();
+            sheet.set(0, 0, "");
+            sheet.set(1, 0, "");
+            sheet.commit();
+            assertEquals("0.0", sheet.value(2, 0), "sparse " + sparse);
+            assertEquals("", sheet.value(0, 0));
+        }
+    }
+    @Test
+    void testStreamingLoader() throws IOException {
+        File file = File.createTempFile("loader", ".txt");
+        file.deleteOnExit();
+        try (FileWriter w = new FileWriter(file)) {
+            w.write("FirstLine\r\n");
+            w.write(" 0 , 0 , 1 2 ,a remark\r\n");  // spaces are dropped, the remark is ignored
+            w.write("0,1,=A0*2\n");
+            w.write("1,0,=A1+1\n");
+            w.write("x,2,5\n");                    // a bad coordinate is skipped
+            w.write("2,2,,\n");                    // less than three fields
+            w.write("9,9,9\n");                    // out of the sheet
+            w.write("\n");
+            w.write("0,0,3");                       // the last edit of a cell wins, even without a line break
+        }
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        SheetMetrics metrics = new SheetMetrics();
+        sheet.setMetrics(metrics);
+        sheet.set(4, 4, "old");
+        SheetLoader.Stats stats = SheetLoader.load(sheet, file.toPath());
+        assertEquals(8, stats.getLines());
+        assertEquals(4, stats.getCells());
+        assertEquals(2, stats.getErrors());
+        assertEquals(8, metrics.getLinesLoaded());
+        assertEquals("3", sheet.get(0, 0).getData());
+        assertEquals("6.0", sheet.value(0, 1));
+        assertEquals("7.0", sheet.value(1, 0));
+        assertEquals("", sheet.value(2, 2));
+        assertEquals("", sheet.value(4, 4), "Loading replaces the previous cells");
+
+        // a save -> load round trip, with lines longer than the read buffer
+        Ex2Sheet big = new Ex2Sheet(26, 2000);
+        String longText = "x".repeat(100000);
+        big.set(25, 1999, longText);
+        for (int y = 0; y < 2000; y++) {
+            big.set(0, y, y == 0 ? "1" : "=A" + (y - 1) + "+1");
+            big.set(1, y, "=A" + y + "*2");
+        }
+        big.save(file.getPath());
+        Ex2Sheet loaded = new Ex2Sheet(26, 2000);
+        loaded.load(file.getPath());
+        for (int y = 0; y < 2000; y++) {
+            assertEquals(big.value(0, y), loaded.value(0, y));
+            assertEquals(big.value(1, y), loaded.value(1, y));
+        }
+        assertEquals(longText, loaded.value(25, 1999));
+    }
+    @Test
+    void testParallelLoaderMatchesLoad() throws IOException {
+        File file = File.createTempFile("parallel", ".txt");
+        file.deleteOnExit();
+        try (FileWriter w = new FileWriter(file)) {
+            w.write("FirstLine\r\n");
+            for (int y = 0; y < 500; y++) {
+                w.write("0," + y + "," + (y == 0 ? "1" : "=A" + (y - 1) + "*2") + "\r\n");
+                w.write(" 1 , " + y + " , =A" + y + " + B" + (499 - y) + ", remark\n");
+                if (y % 50 == 0) {
+                    w.write("2," + y + ",x\n");
+                    w.write("q," + y + ",5\n");
+                    w.write("2," + y + "\n");
+                }
+            }
+            w.write("2,0," + "y".repeat(5000) + "\n");
+            w.write("0,0,3");
+        }
+        Ex2Sheet serial = new Ex2Sheet(26, 500);
+        Ex2Sheet parallel = new Ex2Sheet(26, 500);
+        SheetLoader.Stats expected = SheetLoader.load(serial, file.toPath());
+        // tiny chunks, so lines (and the long one) fall on chunk boundaries
+        SheetLoader.Stats stats = SheetLoader.loadParallel(parallel, file.toPath(), 100);
+        assertEquals(expected.getLines(), stats.getLines());
+        assertEquals(expected.getCells(), stats.getCells());
+        assertEquals(expected.getErrors(), stats.getErrors());
+        for (int x = 0; x < 3; x++) {
+            for (int y = 0; y < 500; y++) {
+                assertEquals(serial.get(x, y).getData(), parallel.get(x, y).getData());
+                assertEquals(serial.value(x, y), parallel.value(x, y));
+            }
+        }
+        assertEquals("3", parallel.get(0, 0).getData());
+
+        // the default chunks: a single one for a small file
+        Ex2Sheet whole = new Ex2Sheet(26, 500);
+        SheetLoader.loadParallel(whole, file.toPath());
+        assertEquals(serial.value(1, 250), whole.value(1, 250));
+    }
+    @Test
+    void testBinarySnapshot() throws IOException {
+        Ex2Sheet sheet = new Ex2Sheet(30, 200);
+        String[][] data = {{"A0", "1"}, {"A1", "1.50"}, {"A2", "-0"}, {"A3", "1e3"}, {"A4", "0.1"},
+                {"B0", "=A0+A1"}, {"B1", "=A0+A1"}, {"B2", "=SUM(A0:A4)"}, {"B3", "=B3"}, {"B4", "=A0+"},
+                {"C0", "hello"}, {"C1", "hello"}, {"AD199", "=C0"}, {"D7", "שלום"}};
+        for (String[] d : data) {
+            CellEntry c = new CellEntry(d[0], 30, 200);
+            sheet.set(c.getX(), c.getY(), d[1]);
+        }
+        File file = File.createTempFile("snapshot", ".ex2");
+        file.deleteOnExit();
+        SheetSnapshot.save(sheet, file.toPath());
+        assertTrue(SheetSnapshot.isSnapshot(file.toPath()));
+
+        Ex2Sheet loaded = new Ex2Sheet(30, 200);
+        loaded.set(5, 5, "old");
+        loaded.load(file.getPath());
+        assertEquals(sheet.getCellCount(), loaded.getCellCount());
+        for (SCell cell : sheet.populatedCells()) {
+            Cell other = loaded.get(cell.getX(), cell.getY());
+            assertEquals(cell.getData(), other.getData());
+            assertEquals(cell.getType(), other.getType());
+            assertEquals(sheet.value(cell.getX(), cell.getY()), loaded.value(cell.getX(), cell.getY()));
+        }
+        assertEquals("", loaded.value(5, 5));
+        // the cells with the same formula share its tree
+        assertSame(((SCell) loaded.get(1, 0)).getFormula(), ((SCell) loaded.get(1, 1)).getFormula());
+
+        // the loaded cells are linked: an edit updates their dependents
+        loaded.set(0, 0, "10");
+        assertEquals("11.5", loaded.value(1, 0));
+
+        // a text save of the loaded sheet is the same as the original one
+        File text = File.createTempFile("text", ".txt");
+        text.deleteOnExit();
+        sheet.save(text.getPath());
+        String expected = new String(Files.readAllBytes(text.toPath()));
+        loaded.set(0, 0, "1");
+        loaded.save(text.getPath());
+        assertEquals(expected, new String(Files.readAllBytes(text.toPath())));
+        assertFalse(SheetSnapshot.isSnapshot(text.toPath()));
+
+        assertThrows(IOException.class, () -> SheetSnapshot.load(new Ex2Sheet(10, 10), file.toPath()));
+    }
+    @Test
+    void testJournalRecovery() throws IOException {
+        File dir = Files.createTempDirectory("journal").toFile();
+        dir.deleteOnExit();
+        Path checkpoint = dir.toPath().resolve("sheet.txt");
+        Path log = dir.toPath().resolve("sheet.journal");
+        Ex2Sheet sheet = new Ex2Sheet(10, 10);
+        SheetJournal journal = SheetJournal.open(sheet, checkpoint, log);
+        journal.setCheckpointInterval(5);
+        for (int y = 0; y < 7; y++) {
+            sheet.set(0, y, y == 0 ? "1" : "=A" + (y - 1) + "*2");
+        }
+        // the 5th edit took a checkpoint, only the last two are in the journal
+        assertTrue(Files.exists(checkpoint));
+        assertEquals(2, journal.getEditCount());
+        sheet.beginBatch();
+        sheet.set(1, 0, "שלום");
+        sheet.set(1, 1, "=A6+1");
+        sheet.commit();
+        assertEquals(4, journal.getEditCount());
+
+        // a crash: the journal is left as it is, with a torn record at its end
+        try (FileOutputStream out = new FileOutputStream(log.toFile(), true)) {
+            out.write(new byte[]{20, 1, 2});
+        }
+        Ex2Sheet recovered = new Ex2Sheet(10, 10);
+        SheetJournal reopened = SheetJournal.open(recovered, checkpoint, log);
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 7; y++) {
+                assertEquals(sheet.get(x, y).getData(), recovered.get(x, y).getData());
+                assertEquals(sheet.value(x, y), recovered.value(x, y));
+            }
+        }
+        assertEquals("65.0", recovered.value(1, 1));
+        // the torn record was dropped, new edits go after the last valid one
+        recovered.set(2, 2, "ok");
+        reopened.close();
+        Ex2Sheet again = new Ex2Sheet(10, 10);
+        SheetJournal.open(again, checkpoint, log).close();
+        assertEquals("ok", again.value(2, 2));
+        assertEquals("65.0", again.value(1, 1));
+        journal.close();
+
+        // a checkpoint keeps texts with spaces and commas as they are
+        Ex2Sheet texts = new Ex2Sheet(10, 10);
+        SheetJournal textJournal = SheetJournal.open(texts, checkpoint, log);
+        texts.set(3, 3, "hello, big world");
+        textJournal.checkpoint();
+        assertEquals(0, textJournal.getEditCount());
+        textJournal.close();
+        Ex2Sheet restored = new Ex2Sheet(10, 10);
+        SheetJournal.open(restored, checkpoint, log).close();
+        assertEquals("hello, big world", restored.value(3, 3));
+        assertEquals("65.0", restored.value(1, 1));
+
+        // a loaded sheet is checkpointed, its cells are not appended to the journal
+        File data = File.createTempFile("journal", ".txt");
+        data.deleteOnExit();
+        sheet.save(data.getPath());
+        Ex2Sheet loaded = new Ex2Sheet(10, 10);
+        try (SheetJournal loadJournal = SheetJournal.open(loaded, checkpoint, log)) {
+            loaded.load(data.getPath());
+            assertEquals(0, loadJournal.getEditCount());
+            assertEquals(8, Files.size(log), "Only the header is left");
+        }
+        Ex2Sheet reloaded = new Ex2Sheet(10, 10);
+        SheetJournal.open(reloaded, checkpoint, log).close();
+        assertEquals("65.0", reloaded.value(1, 1));
+        assertEquals("", reloaded.value(3, 3));
+    }
+    @Test
+    void testWarmSnapshot() throws IOException {
+        Ex2Sheet sheet = new Ex2Sheet(10, 20);
+        for (int y = 0; y < 20; y++) {
+            sheet.set(0, y, y == 0 ? "2" : "=A" + (y - 1) + "*2");
+            sheet.set(1, y, "=A" + y + "+1");
+        }
+        sheet.set(2, 0, "=C1");
+        sheet.set(2, 1, "=C0");
+        sheet.set(2, 2, "=C1+1");
+        sheet.set(3, 0, "=1/");
+        sheet.set(3, 1, "text");
+        File file = File.createTempFile("warm", ".ex2");
+        file.deleteOnExit();
+        SheetSnapshot.save(sheet, file.toPath());
+
+        for (boolean columnar : new boolean[]{false, true}) {
+            Ex2Sheet warm = new Ex2Sheet(10, 20);
+            warm.setColumnar(columnar);
+            SheetMetrics metrics = new SheetMetrics();
+            warm.setMetrics(metrics);
+            warm.load(file.getPath());
+            assertEquals(0, metrics.getFullRecalcs(), "A snapshot with matching results is opened warm");
+            assertEquals(0, metrics.getCellsEvaluated());
+            for (int x = 0; x < 4; x++) {
+                for (int y = 0; y < 20; y++) {
+                    assertEquals(sheet.value(x, y), warm.value(x, y));
+                    assertEquals(sheet.get(x, y).getType(), warm.get(x, y).getType());
+                }
+            }
+            assertArrayEquals(sheet.depth(), warm.depth());
+            assertEquals(0, metrics.getFullRecalcs());
+
+            // only the changed cell and its dependents are evaluated
+            warm.set(1, 5, "=A5+2");
+            assertEquals(1, metrics.getCellsEvaluated());
+            assertEquals("66.0", warm.value(1, 5));
+            warm.set(0, 18, "1");
+            assertEquals(4, metrics.getCellsEvaluated() - 1, "A18, A19, B18 and B19");
+            assertEquals("3.0", warm.value(1, 19));
+            assertEquals(Ex2Utils.ERR_CYCLE, warm.value(2, 2));
+            assertEquals(0, metrics.getFullRecalcs());
+        }
+
+        // results which do not match the content are ignored
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        String content = new String(bytes, StandardCharsets.ISO_8859_1);
+        int at = content.indexOf("text");
+        bytes[at] = 'n';
+        Files.write(file.toPath(), bytes);
+        Ex2Sheet cold = new Ex2Sheet(10, 20);
+        SheetMetrics metrics = new SheetMetrics();
+        cold.setMetrics(metrics);
+        cold.load(file.getPath());
+        assertEquals(1, metrics.getFullRecalcs());
+        assertEquals("next", cold.value(3, 1));
+        assertEquals(sheet.value(1, 19), cold.value(1, 19));
+
+        // the results of a smaller sheet are not restored into a larger one, where a range covers more cells
+        Ex2Sheet small = new Ex2Sheet(9, 17);
+        small.set(0, 0, "5");
+        small.set(1, 10, "=SUM(A0:Z5)");
+        assertEquals(Ex2Utils.ERR_FORM, small.value(1, 10));
+        SheetSnapshot.save(small, file.toPath());
+        Ex2Sheet large = new Ex2Sheet(26, 100);
+        SheetMetrics largeMetrics = new SheetMetrics();
+        large.setMetrics(largeMetrics);
+        large.load(file.getPath());
+        assertEquals(1, largeMetrics.getFullRecalcs());
+        assertEquals("5.0", large.value(1, 10));
+    }
+    @Test
+    void testChangeSets() throws Exception {
+        for (boolean columnar : new boolean[]{false, true}) {
+            Ex2Sheet sheet = new Ex2Sheet(10, 10);
+            sheet.setColumnar(columnar);
+            sheet.set(0, 0, "1");
+            sheet.set(0, 1, "=A0+1");
+            sheet.set(0, 2, "=A0*0");
+            sheet.set(0, 3, "=A2+A1");
+            sheet.set(1, 0, "x");
+
+            ChangeSet changes = sheet.update(0, 0, "2");
+            // A2 is evaluated again, but its value stays 0
+            assertEquals(3, changes.size());
+            assertTrue(changes.contains(0, 0) && changes.contains(0, 1) && changes.contains(0, 3));
+            assertFalse(changes.contains(0, 2));
+            assertEquals("[A0, A1, A3]", changes.toString());
+            assertSame(changes, sheet.getLastChanges());
+
+            // the same data again changes nothing, an empty cell which stays empty neither
+            assertTrue(sheet.update(0, 0, "2").isEmpty());
+            assertTrue(sheet.update(5, 5, "").isEmpty());
+
+            // a bad formula changes the type of its cell and of its dependents
+            changes = sheet.update(0, 2, "=A0*0+");
+            assertEquals("[A2, A3]", changes.toString());
+            assertEquals(Ex2Utils.ERR_FORM_FORMAT, sheet.get(0, 3).getType());
+
+            sheet.beginBatch();
+            assertTrue(sheet.update(1, 0, "y").isEmpty());
+            sheet.set(1, 1, "=A1");
+            changes = sheet.commit();
+            assertEquals(2, changes.size());
+            assertTrue(changes.contains(1, 0) && changes.contains(1, 1));
+
+            // a cycle changes the types of its cells
+            changes = sheet.update(0, 0, "=A3");
+            assertTrue(changes.contains(0, 0) && changes.contains(0, 1) && changes.contains(1, 1));
+        }
+
+        Ex2Sheet sheet = new Ex2Sheet(5, 5);
+        List<ChangeSet> published = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(1);
+        sheet.changes().subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(ChangeSet item) {
+                published.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        sheet.set(0, 0, "1");
+        sheet.set(0, 1, "=A0");
+        sheet.set(0, 1, "=A0");
+        sheet.set(0, 0, "2");
+        sheet.closeChanges();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("[[A0], [A1], [A0, A1]]", published.toString(), "Only the recalculations which changed cells");
+    }
+
+    @Test
+    void testEarlyCutoff() {
+        for (boolean columnar : new boolean[]{false, true}) {
+            Ex2Sheet sheet = new Ex2Sheet(3, 30);
+            sheet.setColumnar(columnar);
+            sheet.set(0, 0, "1");
+            sheet.set(1, 0, "=A0*0");
+            for (int y = 1; y < 20; y++) {
+                sheet.set(1, y, "=B" + (y - 1) + "+1");
+            }
+            sheet.set(2, 0, "=A0+1");
+            sheet.eval();
+            SheetMetrics metrics = new SheetMetrics();
+            sheet.setMetrics(metrics);
+
+            // B0 stays 0, so B1..B19 keep their results
+            sheet.set(0, 0, "5");
+            assertEquals(3, metrics.getCellsEvaluated(), "A0, B0 and C0");
+            assertEquals(19, metrics.getSkippedEvaluations());
+            assertEquals("19.0", sheet.value(1, 19));
+            assertEquals("6.0", sheet.value(2, 0));
+            assertEquals("[A0, C0]", sheet.getLastChanges().toString());
+
+            // a changed result still reaches every dependent
+            sheet.set(1, 0, "=A0");
+            assertEquals("24.0", sheet.value(1, 19));
+
+            // a batch of most of the cells of an evaluated sheet is evaluated from the changed cells on as well
+            long evaluated = metrics.getCellsEvaluated(), skipped = metrics.getSkippedEvaluations();
+            sheet.beginBatch();
+            for (int y = 0; y < 30; y++) {
+                sheet.set(0, y, "" + (y == 0 ? 5 : y));
+            }
+            sheet.set(1, 0, "=A0*1");
+            sheet.commit();
+            assertEquals(1, metrics.getFullRecalcs());
+            assertEquals(31, metrics.getCellsEvaluated() - evaluated, "A0..A29 and B0");
+            assertEquals(3 * 30 - 31, metrics.getSkippedEvaluations() - skipped, "B1..B19, C0 and the empty cells");
+            assertEquals("24.0", sheet.value(1, 19));
+            assertEquals("5.0", sheet.value(1, 0));
+
+            Ex2Sheet fresh = new Ex2Sheet(3, 30);
+            for (int x = 0; x < 3; x++) {
+                for (int y = 0; y < 30; y++) {
+                    fresh.set(x, y, sheet.get(x, y).getData());
+                }
+            }
+            fresh.eval();
+            for (int x = 0; x < 3; x++) {
+                for (int y = 0; y < 30; y++) {
+                    assertEquals(fresh.value(x, y), sheet.value(x, y));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testOnDemandEvaluation() {
+        for (boolean columnar : new boolean[]{false, true}) {
+            Ex2Sheet sheet = new Ex2Sheet(3, 100);
+            Ex2Sheet eager = new Ex2Sheet(3, 100);
+            sheet.setColumnar(columnar);
+            sheet.setOnDemand(true);
+            SheetMetrics metrics = new SheetMetrics();
+            sheet.setMetrics(metrics);
+            sheet.beginBatch();
+            for (int y = 0; y < 100; y++) {
+                String[] row = {"" + y, y == 0 ? "=A0" : "=B" + (y - 1) + "+A" + y, "=A" + y + "*2"};
+                for (int x = 0; x < 3; x++) {
+                    sheet.set(x, y, row[x]);
+                    eager.set(x, y, row[x]);
+                }
+            }
+            sheet.set(2, 99, "=C99");
+            eager.set(2, 99, "=C99");
+            sheet.commit();
+            assertEquals(199, sheet.getStaleCount(), "Only the cells with a formula, but not the cycle");
+            assertFalse(sheet.isEvaluated());
+
+            assertEquals(eager.value(1, 9), sheet.value(1, 9));
+            assertEquals(10, metrics.getCellsEvaluated() - 100, "Only B0..B9 are computed, after the numbers");
+            assertEquals(189, sheet.getStaleCount());
+            assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(2, 99));
+            assertEquals("[B0, B1, B2, B3, B4, B5, B6, B7, B8, B9]", sheet.getLastChanges().toString());
+
+            // an edit makes only its dependents stale, a read computes only what it needs again
+            sheet.set(0, 5, "1000");
+            eager.set(0, 5, "1000");
+            assertEquals(189 + 5, sheet.getStaleCount(), "B5..B9 (C5 was not computed yet)");
+            assertEquals(eager.value(2, 5), sheet.value(2, 5));
+            assertEquals(eager.value(1, 9), sheet.value(1, 9));
+            assertEquals(eager.value(1, 4), sheet.value(1, 4));
+            assertEquals(188, sheet.getStaleCount());
+
+            for (int x = 0; x < 3; x++) {
+                for (int y = 0; y < 100; y++) {
+                    assertEquals(eager.value(x, y), sheet.value(x, y));
+                }
+            }
+            assertEquals(0, sheet.getStaleCount());
+            assertTrue(sheet.isEvaluated());
+
+            sheet.set(0, 0, "7");
+            sheet.setOnDemand(false);
+            assertEquals(0, sheet.getStaleCount());
+            eager.set(0, 0, "7");
+            assertEquals(eager.value(1, 99), sheet.value(1, 99));
+        }
+    }
+
+    @Test
+    void testViewportScheduler() {
+        Ex2Sheet sheet = new Ex2Sheet(4, 200);
+        Ex2Sheet eager = new Ex2Sheet(4, 200);
+        RecalcScheduler scheduler = RecalcScheduler.attach(sheet);
+        assertTrue(sheet.isOnDemand());
+        scheduler.setViewport(2, 0, 3, 9);
+        sheet.beginBatch();
+        for (int y = 0; y < 200; y++) {
+            String[] row = {"" + y, y == 0 ? "=A0" : "=B" + (y - 1) + "+A" + y, "=B" + y + "/2", "=A" + y + "*A" + y};
+            for (int x = 0; x < 4; x++) {
+                sheet.set(x, y, row[x]);
+                eager.set(x, y, row[x]);
+            }
+        }
+        sheet.commit();
+        assertFalse(scheduler.isDone());
+
+        // the viewport C0:D9, with the precedent cone B0..B9
+        assertEquals(30, scheduler.computeViewport());
+        assertEquals(3 * 200 - 30, sheet.getStaleCount());
+        for (int x = 2; x < 4; x++) {
+            for (int y = 0; y < 10; y++) {
+                assertFalse(((SCell) sheet.get(x, y)).isStale());
+                assertEquals(eager.value(x, y), sheet.value(x, y));
+            }
+        }
+        assertEquals(0, scheduler.computeViewport());
+
+        // the rest of the sheet, step by step
+        scheduler.setStep(100);
+        assertEquals(100, sheet.computePending(100));
+        assertTrue(scheduler.runBackground(Long.MAX_VALUE));
+        assertTrue(sheet.isEvaluated());
+
+        // an edit makes its dependents stale again
+        sheet.set(0, 150, "-1");
+        eager.set(0, 150, "-1");
+        assertEquals(0, scheduler.computeViewport());
+        assertFalse(scheduler.isDone());
+        assertTrue(scheduler.runBackground(Long.MAX_VALUE));
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 200; y++) {
+                assertEquals(eager.value(x, y), sheet.value(x, y));
+            }
+        }
+    }
+
+    @Test
+    void testFormulaSimplification() throws Exception {
+        assertEquals("((6.0+A1)*2.0)", Formula.parse("=2*3+A1*(4/2)").toString());
+        String[][] cases = {{"=A1*1", "A1"}, {"=1*A1", "A1"}, {"=A1/1", "A1"}, {"=--A1", "A1"}, {"=A1-0", "A1"},
+                {"=-(2+3)", "-5.0"}, {"=5/0", "Infinity"}, {"=A1/(1-1)", "(A1/0.0)"}, {"=A1+0", "(A1+0.0)"},
+                {"=A1-(-0)", "(A1--0.0)"}, {"=SUM(A0:A2)*1", "SUM(A0:A2)"}};
+        for (String[] c : cases) {
+            assertEquals(c[1], Formula.parse(c[0]).toString(), c[0]);
+        }
+
+        Ex2Sheet sheet = new Ex2Sheet(5, 10);
+        SheetMetrics metrics = new SheetMetrics();
+        sheet.setMetrics(metrics);
+        sheet.set(0, 1, "-0");
+        sheet.set(0, 2, "text");
+        sheet.set(1, 0, "=2*3+A1*(4/2)");
+        assertEquals(10, metrics.getParsedNodes());
+        assertEquals(5, metrics.getFoldedNodes());
+        assertEquals(5, metrics.getSavedNodeEvaluations());
+        assertEquals("12.0", sheet.value(1, 0));
+        String[] forms = {"=A1+0", "=A1*1", "=-(-A1)", "=A1-0", "=A2*1", "=C5/(1-1)", "=A2/(1-1)", "=A1/1"};
+        for (int y = 0; y < forms.length; y++) {
+            sheet.set(2, y, forms[y]);
+        }
+        assertEquals("0.0", sheet.value(2, 0), "x+0 turns -0 into 0");
+        assertEquals("-0.0", sheet.value(2, 1));
+        assertEquals(Ex2Utils.ERR_FORM, sheet.value(2, 4), "The reference to a text cell is kept");
+        assertEquals(Ex2Utils.ERR_CYCLE, sheet.value(2, 5), "And so is the reference to the cycle");
+        for (int y = 0; y < forms.length; y++) {
+            if (((SCell) sheet.get(2, y)).isOnCycle()) {
+                // a cell on a cycle is an error before its formula is evaluated
+                continue;
+            }
+            Formula tree = Formula.parseTree(forms[y], sheet.width(), sheet.height());
+            String expected;
+            try {
+                expected = String.valueOf(tree.eval(sheet));
+            } catch (SCell.ErrorForm e) {
+                expected = Ex2Utils.ERR_FORM;
+            } catch (SCell.ErrorCycle e) {
+                expected = Ex2Utils.ERR_CYCLE;
+            }
+            assertEquals(expected, sheet.value(2, y), forms[y]);
+        }
+    }
 }
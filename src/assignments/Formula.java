@@ -0,0 +1,643 @@
+import java.util.ArrayList;
+
+/**
+ * Represents a formula (e.g., "=A1*(3-A2)" or "=SUM(A0:A99)/2") compiled into an immutable expression tree.
+ * A formula is parsed once and can then be evaluated many times against a spreadsheet
+ * without re-tokenizing its text.
+ * The tree follows the same splitting rules as the string evaluator it replaces:
+ * the last operator outside of brackets splits the expression, a leading '-' negates,
+ * and a bracketed sub-expression whose value is not finite (an infinity or NaN) is an error (see Group).
+ * A parsed tree is simplified (see simplify()): constant sub-expressions are folded into literals,
+ * so only the parts which depend on cells are evaluated again on every recalculation.
+ */
+public abstract class Formula {
+
+    /**
+     * Evaluates this expression against the given spreadsheet.
+     *
+     * @param sheet the spreadsheet used to resolve cell references.
+     * @return the numeric result of the expression.
+     * @throws SCell.ErrorForm if a referenced cell is empty, text or an invalid formula.
+     * @throws SCell.ErrorCycle if a referenced cell is part of a cycle.
+     */
+    public abstract double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle;
+
+    /**
+     * Adds all the cell references of this expression to the given list.
+     *
+     * @param refs the list to fill.
+     */
+    public abstract void collectReferences(ArrayList<Ref> refs);
+
+    /**
+     * Adds all the range functions of this expression (e.g., SUM(A0:A99)) to the given list.
+     *
+     * @param ranges the list to fill.
+     */
+    public void collectRanges(ArrayList<Aggregate> ranges) {
+    }
+
+    /**
+     * Returns the number of nodes of this expression tree.
+     *
+     * @return the size of the tree.
+     */
+    public int size() {
+        return 1;
+    }
+
+    /**
+     * Returns an equivalent tree which is cheaper to evaluate: a sub-expression without references (or ranges)
+     * is folded into a literal, and x*1, 1*x, x/1, x-0 and --x are reduced to x.
+     * The result is the same for every value of x (including -0, NaN and the infinities), and every
+     * reference stays in the tree, so the errors and the cycles of the formula do not change either.
+     * x+0 is not reduced, since it turns -0 into 0.
+     *
+     * @return the simplified tree (this tree if nothing was simplified).
+     */
+    public Formula simplify() {
+        return this;
+    }
+
+    /**
+     * Parses a formula string into an expression tree, accepting the references of a classic 26x100 sheet.
+     *
+     * @param expression the formula, with or without the leading '='.
+     * @return the root of the expression tree.
+     * @throws SCell.ErrorForm if the expression can not be parsed.
+     */
+    public static Formula parse(String expression) throws SCell.ErrorForm {
+        return parse(expression, CellAddress.CLASSIC_WIDTH, CellAddress.CLASSIC_HEIGHT);
+    }
+
+    /**
+     * Parses a formula string into a simplified expression tree (see simplify()).
+     *
+     * @param expression the formula, with or without the leading '='.
+     * @param width the number of columns a reference may address.
+     * @param height the number of rows a reference may address.
+     * @return the root of the simplified expression tree.
+     * @throws SCell.ErrorForm if the expression can not be parsed.
+     */
+    public static Formula parse(String expression, int width, int height) throws SCell.ErrorForm {
+        return parseTree(expression, width, height).simplify();
+    }
+
+    /**
+     * Parses a formula string into an expression tree, as written (without simplifying it).
+     *
+     * @param expression the formula, with or without the leading '='.
+     * @param width the number of columns a reference may address.
+     * @param height the number of rows a reference may address.
+     * @return the root of the expression tree.
+     * @throws SCell.ErrorForm if the expression can not be parsed.
+     */
+    public static Formula parseTree(String expression, int width, int height) throws SCell.ErrorForm {
+        String str = expression.replaceAll(" ", "").toUpperCase();
+        if (!str.isEmpty() && str.charAt(0) == '=') {
+            str = str.substring(1);
+        }
+        return parse(str, 0, str.length(), width, height);
+    }
+
+    /**
+     * Parses the part [from, to) of the given (normalized) string.
+     */
+    private static Formula parse(String str, int from, int to, int width, int height) throws SCell.ErrorForm {
+        if (from >= to) {
+            throw new SCell.ErrorForm("EmptyExpression");
+        }
+
+        // Find last valid operator (ignoring operators inside brackets)
+        int bracketCount = 0;
+        for (int i = to - 1; i >= from; i--) {
+            char c = str.charAt(i);
+            if (c == ')') bracketCount++;
+            if (c == '(') bracketCount--;
+            if (bracketCount == 0 && SCell.isOp(c)) {
+                // A minus is binary only if it follows an operand
+                if (c != '-' || (i > from && !SCell.isOp(str.charAt(i - 1)))) {
+                    Formula left = (i == from) ? new Num(0) : parse(str, from, i, width, height);
+                    return new Bin(c, left, parse(str, i + 1, to, width, height));
+                }
+            }
+        }
+
+        // Leading unary minuses
+        int start = from;
+        while (start < to && str.charAt(start) == '-') {
+            start++;
+        }
+        int negations = start - from;
+
+        Formula ans;
+        int nameEnd = start;
+        while (nameEnd < to && SCell.isLetter(str.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        int openIndex = str.indexOf('(', start);
+        if (nameEnd > start && nameEnd < to && str.charAt(nameEnd) == '(') {
+            // a range function, e.g., SUM(A0:B10)
+            int fn = Aggregate.function(str, start, nameEnd);
+            int closeIndex = SCell.correctClosedBracket(str, nameEnd);
+            if (fn == -1 || closeIndex != to - 1) {
+                throw new SCell.ErrorForm("InvalidFunction");
+            }
+            ans = Aggregate.parse(fn, str, nameEnd + 1, closeIndex, width, height);
+        } else if (openIndex != -1 && openIndex < to) {
+            if (openIndex != start) {
+                throw new SCell.ErrorForm("InvalidExpression");
+            }
+            int closeIndex = SCell.correctClosedBracket(str, openIndex);
+            if (closeIndex != to - 1) {
+                throw new SCell.ErrorForm("InvalidBrackets");
+            }
+            ans = new Group(parse(str, openIndex + 1, closeIndex, width, height));
+        } else {
+            if (start == to) {
+                throw new SCell.ErrorForm("InvalidNumber");
+            }
+            if (SCell.isLetter(str.charAt(start))) {
+                long cord = CellAddress.parse(str, start, to, width, height);
+                if (cord == CellAddress.INVALID) {
+                    throw new SCell.ErrorForm("NoCellFound");
+                }
+                ans = new Ref(CellAddress.x(cord), CellAddress.y(cord));
+            } else {
+                try {
+                    ans = new Num(Double.parseDouble(str.substring(start, to)));
+                } catch (NumberFormatException e) {
+                    throw new SCell.ErrorForm("InvalidNumber");
+                }
+            }
+        }
+
+        for (int i = 0; i < negations; i++) {
+            ans = new Neg(ans);
+        }
+        return ans;
+    }
+
+    /**
+     * A numeric literal.
+     */
+    public static final class Num extends Formula {
+        private final double value;
+
+        public Num(double value) {
+            this.value = value;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet) {
+            return value;
+        }
+
+        @Override
+        public void collectReferences(ArrayList<Ref> refs) {
+        }
+
+        @Override
+        public String toString() {
+            return String.valueOf(value);
+        }
+    }
+
+    /**
+     * A reference to another cell, resolved to its x,y coordinate at parse time.
+     */
+    public static final class Ref extends Formula {
+        private final int x;
+        private final int y;
+
+        public Ref(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public int getX() {
+            return x;
+        }
+
+        public int getY() {
+            return y;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+            if (x >= sheet.width() || y >= sheet.height()) {
+                throw new SCell.ErrorForm("NoCellFound");
+            }
+            SCell cell = (SCell) sheet.get(x, y);
+            if (cell == null || cell.getData().isEmpty()) {
+                throw new SCell.ErrorForm("NoCellFound");
+            }
+
+            if (cell.isOnCycle()) {
+                throw new SCell.ErrorCycle("ErrorCycle");
+            }
+
+            int cellType = cell.getType();
+            if (cellType == Ex2Utils.ERR_CYCLE_FORM) {
+                throw new SCell.ErrorCycle("ErrorCycle");
+            } else if (cellType == Ex2Utils.ERR_FORM_FORMAT) {
+                throw new SCell.ErrorForm("ErrorForm");
+            } else if (cellType == Ex2Utils.TEXT) {
+                throw new SCell.ErrorForm("TextCell");
+            }
+            return cell.computeForm();
+        }
+
+        @Override
+        public void collectReferences(ArrayList<Ref> refs) {
+            refs.add(this);
+        }
+
+        @Override
+        public String toString() {
+            return CellAddress.format(x, y);
+        }
+    }
+
+    /**
+     * A unary minus.
+     */
+    public static final class Neg extends Formula {
+        private final Formula operand;
+
+        public Neg(Formula operand) {
+            this.operand = operand;
+        }
+
+        public Formula getOperand() {
+            return operand;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+            return -operand.eval(sheet);
+        }
+
+        @Override
+        public void collectReferences(ArrayList<Ref> refs) {
+            operand.collectReferences(refs);
+        }
+
+        @Override
+        public void collectRanges(ArrayList<Aggregate> ranges) {
+            operand.collectRanges(ranges);
+        }
+
+        @Override
+        public int size() {
+            return 1 + operand.size();
+        }
+
+        @Override
+        public Formula simplify() {
+            Formula o = operand.simplify();
+            if (o instanceof Num num) {
+                return new Num(-num.getValue());
+            }
+            if (o instanceof Neg neg) {
+                return neg.getOperand();
+            }
+            return o == operand ? this : new Neg(o);
+        }
+
+        @Override
+        public String toString() {
+            return "-(" + operand + ")";
+        }
+    }
+
+    /**
+     * A bracketed sub-expression. The string evaluator substituted the value of the brackets back into
+     * the text of the formula, where an infinity or NaN is not a number, so such a value is an error.
+     */
+    public static final class Group extends Formula {
+        private final Formula inner;
+
+        public Group(Formula inner) {
+            this.inner = inner;
+        }
+
+        public Formula getInner() {
+            return inner;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+            return finite(inner.eval(sheet));
+        }
+
+        /**
+         * Returns the value of a bracketed sub-expression, or throws if it is not finite.
+         *
+         * @param value the value of the brackets.
+         * @return the value.
+         * @throws SCell.ErrorForm if the value is an infinity or NaN.
+         */
+        public static double finite(double value) throws SCell.ErrorForm {
+            if (Double.isNaN(value) || Double.isInfinite(value)) {
+                throw new SCell.ErrorForm("InvalidNumber");
+            }
+            return value;
+        }
+
+        @Override
+        public void collectReferences(ArrayList<Ref> refs) {
+            inner.collectReferences(refs);
+        }
+
+        @Override
+        public void collectRanges(ArrayList<Aggregate> ranges) {
+            inner.collectRanges(ranges);
+        }
+
+        @Override
+        public int size() {
+            return 1 + inner.size();
+        }
+
+        @Override
+        public Formula simplify() {
+            Formula i = inner.simplify();
+            if (i instanceof Num num && Double.isFinite(num.getValue())) {
+                return num;
+            }
+            if (i instanceof Group) {
+                return i;
+            }
+            return i == inner ? this : new Group(i);
+        }
+
+        @Override
+        public String toString() {
+            return "(" + inner + ")";
+        }
+    }
+
+    /**
+     * A binary operation: one of + - * /.
+     */
+    public static final class Bin extends Formula {
+        private final char op;
+        private final Formula left;
+        private final Formula right;
+
+        public Bin(char op, Formula left, Formula right) {
+            this.op = op;
+            this.left = left;
+            this.right = right;
+        }
+
+        public char getOp() {
+            return op;
+        }
+
+        public Formula getLeft() {
+            return left;
+        }
+
+        public Formula getRight() {
+            return right;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+            switch (op) {
+                case '+': return left.eval(sheet) + right.eval(sheet);
+                case '-': return left.eval(sheet) - right.eval(sheet);
+                case '*': return left.eval(sheet) * right.eval(sheet);
+                default:
+                    double divisor = right.eval(sheet);
+                    if (divisor == 0) return Double.POSITIVE_INFINITY;
+                    return left.eval(sheet) / divisor;
+            }
+        }
+
+        @Override
+        public void collectReferences(ArrayList<Ref> refs) {
+            left.collectReferences(refs);
+            right.collectReferences(refs);
+        }
+
+        @Override
+        public void collectRanges(ArrayList<Aggregate> ranges) {
+            left.collectRanges(ranges);
+            right.collectRanges(ranges);
+        }
+
+        @Override
+        public int size() {
+            return 1 + left.size() + right.size();
+        }
+
+        @Override
+        public Formula simplify() {
+            Formula l = left.simplify();
+            Formula r = right.simplify();
+            if (l instanceof Num && r instanceof Num) {
+                // a constant has no reference to resolve, and never throws
+                return new Num(new Bin(op, l, r).constant());
+            }
+            switch (op) {
+                case '*':
+                    if (isLiteral(r, 1)) return l;
+                    if (isLiteral(l, 1)) return r;
+                    break;
+                case '/':
+                    if (isLiteral(r, 1)) return l;
+                    break;
+                case '-':
+                    // x-0 is x, but x-(-0) is x+0
+                    if (isLiteral(r, 0) && Double.doubleToLongBits(((Num) r).getValue()) == 0) return l;
+                    break;
+                default:
+                    break;
+            }
+            return l == left && r == right ? this : new Bin(op, l, r);
+        }
+
+        /**
+         * Evaluates an operation of two literals.
+         */
+        private double constant() {
+            try {
+                return eval(null);
+            } catch (SCell.ErrorForm | SCell.ErrorCycle e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static boolean isLiteral(Formula f, double value) {
+            return f instanceof Num num && num.getValue() == value;
+        }
+
+        @Override
+        public String toString() {
+            return "(" + left + op + right + ")";
+        }
+    }
+
+    /**
+     * A range function: SUM, AVG, MIN, MAX or COUNT over a rectangle of cells (e.g., "SUM(A0:B10)").
+     * Empty and text cells are skipped, an error (or a cycle) in the range is the error of the function.
+     * The values are streamed from the sheet's result columns when it has them (see ColumnStore),
+     * otherwise from the cells' computed results, so no string or list is made per cell.
+     * The cells of the range are not references: the sheet registers the range as a whole (see RangeIndex).
+     */
+    public static final class Aggregate extends Formula {
+        /** The names of the range functions. */
+        public static final String[] FUNCTIONS = {"SUM", "AVG", "MIN", "MAX", "COUNT"};
+        public static final int SUM = 0, AVG = 1, MIN = 2, MAX = 3, COUNT = 4;
+        private final int function;
+        private final int x1, y1, x2, y2;
+
+        /**
+         * @param function one of SUM, AVG, MIN, MAX, COUNT.
+         * @param x1 the first column of the range.
+         * @param y1 the first row of the range.
+         * @param x2 the last column of the range (at least x1).
+         * @param y2 the last row of the range (at least y1).
+         */
+        public Aggregate(int function, int x1, int y1, int x2, int y2) {
+            this.function = function;
+            this.x1 = x1;
+            this.y1 = y1;
+            this.x2 = x2;
+            this.y2 = y2;
+        }
+
+        /**
+         * Finds the range function named by [from, to) of the given string.
+         *
+         * @return the function, or -1 if the name is not a range function.
+         */
+        public static int function(String str, int from, int to) {
+            for (int i = 0; i < FUNCTIONS.length; i++) {
+                if (FUNCTIONS[i].length() == to - from && str.startsWith(FUNCTIONS[i], from)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Parses the range [from, to) of the given string: an address, or two addresses separated by ':'.
+         */
+        private static Aggregate parse(int fn, String str, int from, int to, int width, int height)
+                throws SCell.ErrorForm {
+            int colon = str.indexOf(':', from);
+            if (colon == -1 || colon >= to) {
+                colon = to;
+            }
+            long first = CellAddress.parse(str, from, colon, width, height);
+            long last = colon == to ? first : CellAddress.parse(str, colon + 1, to, width, height);
+            if (first == CellAddress.INVALID || last == CellAddress.INVALID) {
+                throw new SCell.ErrorForm("InvalidRange");
+            }
+            return new Aggregate(fn,
+                    Math.min(CellAddress.x(first), CellAddress.x(last)), Math.min(CellAddress.y(first), CellAddress.y(last)),
+                    Math.max(CellAddress.x(first), CellAddress.x(last)), Math.max(CellAddress.y(first), CellAddress.y(last)));
+        }
+
+        public int getFunction() {
+            return function;
+        }
+
+        public int getX1() {
+            return x1;
+        }
+
+        public int getY1() {
+            return y1;
+        }
+
+        public int getX2() {
+            return x2;
+        }
+
+        public int getY2() {
+            return y2;
+        }
+
+        /**
+         * @return true iff the x,y cell is in this range.
+         */
+        public boolean contains(int x, int y) {
+            return x >= x1 && x <= x2 && y >= y1 && y <= y2;
+        }
+
+        @Override
+        public double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+            if (x2 >= sheet.width() || y2 >= sheet.height()) {
+                throw new SCell.ErrorForm("NoCellFound");
+            }
+            double sum = 0, min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+            long count = 0;
+            ColumnStore columns = sheet.getColumns();
+            for (int x = x1; x <= x2; x++) {
+                double[] values = columns == null ? null : columns.getValues(x);
+                byte[] types = columns == null ? null : columns.getTypes(x);
+                for (int y = y1; y <= y2; y++) {
+                    int type = types == null ? 0 : types[y];
+                    double v;
+                    if (type == Ex2Utils.NUMBER || type == Ex2Utils.FORM) {
+                        v = values[y];
+                    } else if (type == Ex2Utils.TEXT) {
+                        continue;
+                    } else if (type == Ex2Utils.ERR_FORM_FORMAT) {
+                        throw new SCell.ErrorForm("ErrorForm");
+                    } else if (type == Ex2Utils.ERR_CYCLE_FORM) {
+                        throw new SCell.ErrorCycle("ErrorCycle");
+                    } else {
+                        // no stored result: read the cell itself
+                        SCell cell = (SCell) sheet.get(x, y);
+                        if (cell.getData().isEmpty() || cell.getType() == Ex2Utils.TEXT) {
+                            continue;
+                        }
+                        if (cell.isOnCycle() || cell.getType() == Ex2Utils.ERR_CYCLE_FORM) {
+                            throw new SCell.ErrorCycle("ErrorCycle");
+                        } else if (cell.getType() == Ex2Utils.ERR_FORM_FORMAT) {
+                            throw new SCell.ErrorForm("ErrorForm");
+                        }
+                        v = cell.computeForm();
+                    }
+                    sum += v;
+                    min = Math.min(min, v);
+                    max = Math.max(max, v);
+                    count++;
+                }
+            }
+            switch (function) {
+                case SUM: return sum;
+                case AVG:
+                    if (count == 0) throw new SCell.ErrorForm("EmptyRange");
+                    return sum / count;
+                case MIN: return count == 0 ? 0 : min;
+                case MAX: return count == 0 ? 0 : max;
+                default: return count;
+            }
+        }
+
+        @Override
+        public void collectReferences(ArrayList<Ref> refs) {
+        }
+
+        @Override
+        public void collectRanges(ArrayList<Aggregate> ranges) {
+            ranges.add(this);
+        }
+
+        @Override
+        public String toString() {
+            return FUNCTIONS[function] + "(" + CellAddress.format(x1, y1) + ":" + CellAddress.format(x2, y2) + ")";
+        }
+    }
+}
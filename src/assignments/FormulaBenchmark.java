@@ -0,0 +1,56 @@
+/**
+ * Measures a full recalculation (Ex2Sheet.eval()) of a sheet with 100,000 formulas,
+ * with the expression tree interpreter and with compiled formulas (see FormulaCompiler).
+ * Usage: java FormulaBenchmark [rounds]
+ */
+public class FormulaBenchmark {
+    private static final int WIDTH = 100;
+    private static final int ROWS = 1000;
+
+    public static void main(String[] args) {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        double interpreted = run("interpreter", false, 0, rounds);
+        double columnar = run("interpreter, columnar", true, 0, rounds);
+        double compiled = run("compiled, columnar", true, 1, rounds);
+        System.out.printf("speedup: %.2fx over the interpreter, %.2fx over the columnar interpreter%n",
+                interpreted / compiled, columnar / compiled);
+    }
+
+    /**
+     * Builds the sheet: row 0 holds numbers, every cell of the next rows refers to two cells of the row above it.
+     */
+    private static Ex2Sheet build(boolean columnar, int compileThreshold) {
+        Ex2Sheet sheet = new Ex2Sheet(WIDTH, ROWS + 1);
+        sheet.setColumnar(columnar);
+        sheet.setCompileThreshold(compileThreshold);
+        for (int x = 0; x < WIDTH; x++) {
+            sheet.set(x, 0, String.valueOf(x + 1));
+        }
+        for (int y = 1; y <= ROWS; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                String a = CellAddress.format(x, y - 1);
+                String b = CellAddress.format((x + 1) % WIDTH, y - 1);
+                sheet.set(x, y, "=" + a + "*0.5+" + b + "/2-(" + a + "-1)*0.25");
+            }
+        }
+        return sheet;
+    }
+
+    /**
+     * @return the mean time of a full recalculation, in milliseconds.
+     */
+    private static double run(String name, boolean columnar, int compileThreshold, int rounds) {
+        Ex2Sheet sheet = build(columnar, compileThreshold);
+        // warm up (and compile the formulas)
+        for (int i = 0; i < rounds; i++) {
+            sheet.eval();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            sheet.eval();
+        }
+        double ms = (System.nanoTime() - start) / 1e6 / rounds;
+        System.out.printf("%-24s %8.2f ms per eval(), A%d = %s%n", name, ms, ROWS, sheet.value(0, ROWS));
+        return ms;
+    }
+}
@@ -0,0 +1,217 @@
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compiles a formula's expression tree into a chain of MethodHandles, which the JVM turns into
+ * ordinary (inlined) code once it is hot, instead of walking the tree node by node.
+ * The chain is built per shape of a formula: its operators and brackets, with every reference and
+ * every number taken from an argument array. Formulas filled across a sheet (e.g., "=A1*2+B1" and
+ * "=A2*3+B2") share a single chain, so a large sheet needs only a handful of chains, each one hot.
+ * The compiled chain evaluates its operands in the same order as Formula.eval (left to right,
+ * the divisor first for '/'), so it throws the same errors.
+ * A cell reference is a direct load from the sheet's result columns (see ColumnStore) when the referenced
+ * cell holds a number, any other case (no columns, empty, text, error or cycle) falls back to Formula.Ref.eval.
+ * A range function is a leaf like a reference, computed by Formula.Aggregate.eval.
+ */
+public class FormulaCompiler {
+    // the type of a compiled shape: (sheet, references, numbers) -> result
+    private static final MethodType SHAPE_TYPE =
+            MethodType.methodType(double.class, Ex2Sheet.class, Formula[].class, double[].class);
+    // shapes beyond this number are compiled but not shared
+    private static final int MAX_SHAPES = 10_000;
+    private static final ConcurrentHashMap<String, MethodHandle> SHAPES = new ConcurrentHashMap<>();
+    private static final MethodHandle ADD, SUB, MUL, DIV_BY, NEG, IS_ZERO, LOAD, FINITE;
+
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodType binary = MethodType.methodType(double.class, double.class, double.class);
+            ADD = lookup.findStatic(FormulaCompiler.class, "add", binary);
+            SUB = lookup.findStatic(FormulaCompiler.class, "sub", binary);
+            MUL = lookup.findStatic(FormulaCompiler.class, "mul", binary);
+            DIV_BY = lookup.findStatic(FormulaCompiler.class, "divBy", binary);
+            NEG = lookup.findStatic(FormulaCompiler.class, "neg", MethodType.methodType(double.class, double.class));
+            IS_ZERO = lookup.findStatic(FormulaCompiler.class, "isZero", MethodType.methodType(boolean.class, double.class));
+            LOAD = lookup.findStatic(FormulaCompiler.class, "load",
+                    MethodType.methodType(double.class, Formula.class, Ex2Sheet.class));
+            FINITE = lookup.findStatic(Formula.Group.class, "finite", MethodType.methodType(double.class, double.class));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    /**
+     * A compiled formula: the chain of its shape, with the leaves (references and range functions)
+     * and the numbers of the formula.
+     */
+    public static final class Compiled {
+        private final MethodHandle shape;
+        private final Formula[] refs;
+        private final double[] nums;
+
+        private Compiled(MethodHandle shape, Formula[] refs, double[] nums) {
+            this.shape = shape;
+            this.refs = refs;
+            this.nums = nums;
+        }
+
+        /**
+         * Computes the formula.
+         *
+         * @param sheet the spreadsheet used to resolve cell references.
+         * @return the numeric result of the formula.
+         * @throws SCell.ErrorForm if a referenced cell is empty, text or an invalid formula.
+         * @throws SCell.ErrorCycle if a referenced cell is part of a cycle.
+         */
+        public double eval(Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+            try {
+                return (double) shape.invokeExact(sheet, refs, nums);
+            } catch (SCell.ErrorForm | SCell.ErrorCycle | RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    private FormulaCompiler() {
+    }
+
+    /**
+     * Compiles the given expression tree.
+     *
+     * @param formula the expression to compile.
+     * @return the compiled formula.
+     */
+    public static Compiled compile(Formula formula) {
+        StringBuilder key = new StringBuilder();
+        ArrayList<Formula> refs = new ArrayList<>();
+        ArrayList<Double> nums = new ArrayList<>();
+        describe(formula, key, refs, nums);
+        MethodHandle shape = SHAPES.get(key.toString());
+        if (shape == null) {
+            if (SHAPES.size() < MAX_SHAPES) {
+                shape = SHAPES.computeIfAbsent(key.toString(), k -> build(formula, new int[2]));
+            } else {
+                // the cache is full: the shape is built for this formula only
+                shape = build(formula, new int[2]);
+            }
+        }
+        double[] values = new double[nums.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = nums.get(i);
+        }
+        return new Compiled(shape, refs.toArray(new Formula[0]), values);
+    }
+
+    /**
+     * Writes the shape of the tree to key, and collects its leaves and numbers (left to right).
+     */
+    private static void describe(Formula f, StringBuilder key, ArrayList<Formula> refs, ArrayList<Double> nums) {
+        if (f instanceof Formula.Num num) {
+            key.append('N');
+            nums.add(num.getValue());
+        } else if (f instanceof Formula.Ref || f instanceof Formula.Aggregate) {
+            key.append('R');
+            refs.add(f);
+        } else if (f instanceof Formula.Neg neg) {
+            key.append("-(");
+            describe(neg.getOperand(), key, refs, nums);
+            key.append(')');
+        } else if (f instanceof Formula.Group group) {
+            key.append('[');
+            describe(group.getInner(), key, refs, nums);
+            key.append(']');
+        } else if (f instanceof Formula.Bin bin) {
+            key.append('(');
+            describe(bin.getLeft(), key, refs, nums);
+            key.append(bin.getOp());
+            describe(bin.getRight(), key, refs, nums);
+            key.append(')');
+        } else {
+            throw new IllegalArgumentException("Unknown formula: " + f);
+        }
+    }
+
+    /**
+     * Builds the chain of the tree's shape, in the order of describe().
+     *
+     * @param next the next reference slot (next[0]) and number slot (next[1]).
+     * @return a method handle of SHAPE_TYPE.
+     */
+    private static MethodHandle build(Formula f, int[] next) {
+        if (f instanceof Formula.Num) {
+            MethodHandle num = MethodHandles.insertArguments(
+                    MethodHandles.arrayElementGetter(double[].class), 1, next[1]++);
+            return MethodHandles.dropArguments(num, 0, Ex2Sheet.class, Formula[].class);
+        } else if (f instanceof Formula.Ref || f instanceof Formula.Aggregate) {
+            MethodHandle ref = MethodHandles.insertArguments(
+                    MethodHandles.arrayElementGetter(Formula[].class), 1, next[0]++);
+            // (refs, sheet) -> load(refs[i], sheet)
+            MethodHandle load = MethodHandles.collectArguments(LOAD, 0, ref);
+            return MethodHandles.permuteArguments(load, SHAPE_TYPE, 1, 0);
+        } else if (f instanceof Formula.Neg neg) {
+            return MethodHandles.filterReturnValue(build(neg.getOperand(), next), NEG);
+        } else if (f instanceof Formula.Group group) {
+            return MethodHandles.filterReturnValue(build(group.getInner(), next), FINITE);
+        }
+        Formula.Bin bin = (Formula.Bin) f;
+        MethodHandle left = build(bin.getLeft(), next);
+        MethodHandle right = build(bin.getRight(), next);
+        Class<?>[] args = SHAPE_TYPE.parameterArray();
+        if (bin.getOp() == '/') {
+            // (divisor, args) -> divisor == 0 ? +Infinity : left(args) / divisor, after divisor = right(args)
+            MethodHandle divide = MethodHandles.collectArguments(DIV_BY, 1, left);
+            MethodHandle infinity = MethodHandles.dropArguments(
+                    MethodHandles.dropArguments(MethodHandles.constant(double.class, Double.POSITIVE_INFINITY), 0, args),
+                    0, double.class);
+            MethodHandle test = MethodHandles.dropArguments(IS_ZERO, 1, args);
+            return MethodHandles.foldArguments(MethodHandles.guardWithTest(test, infinity, divide), right);
+        }
+        MethodHandle op = bin.getOp() == '+' ? ADD : bin.getOp() == '-' ? SUB : MUL;
+        // (l, args) -> op(l, right(args)), after l = left(args)
+        return MethodHandles.foldArguments(MethodHandles.collectArguments(op, 1, right), left);
+    }
+
+    private static double load(Formula leaf, Ex2Sheet sheet) throws SCell.ErrorForm, SCell.ErrorCycle {
+        if (!(leaf instanceof Formula.Ref ref)) {
+            return leaf.eval(sheet);
+        }
+        ColumnStore columns = sheet.getColumns();
+        int x = ref.getX(), y = ref.getY();
+        if (columns != null && x < sheet.width() && y < sheet.height()) {
+            int type = columns.getType(x, y);
+            if (type == Ex2Utils.NUMBER || type == Ex2Utils.FORM) {
+                return columns.getValue(x, y);
+            }
+        }
+        return ref.eval(sheet);
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double sub(double a, double b) {
+        return a - b;
+    }
+
+    private static double mul(double a, double b) {
+        return a * b;
+    }
+
+    private static double divBy(double divisor, double dividend) {
+        return dividend / divisor;
+    }
+
+    private static double neg(double a) {
+        return -a;
+    }
+
+    private static boolean isZero(double a) {
+        return a == 0;
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.ArrayList;
+import java.util.Collections;
+
+/**
+ * Registers the ranges of the range functions (e.g., SUM(A0:A5000)) of a spreadsheet, each one as a whole:
+ * a cell depends on a range without an edge per cell of the range.
+ * The ranges are kept in a list per column they cover, so finding the cells which depend on a cell
+ * only checks the ranges of its column.
+ */
+public class RangeIndex {
+    // the ranges covering each column, or null if no range covers it
+    private final ArrayList<ArrayList<Entry>> byColumn;
+    private int size = 0;
+
+    /**
+     * A range, and the cell whose formula aggregates it.
+     */
+    private record Entry(SCell dependent, Formula.Aggregate range) {
+    }
+
+    /**
+     * Constructs an empty index for a spreadsheet with the given number of columns.
+     *
+     * @param width the number of columns.
+     */
+    public RangeIndex(int width) {
+        byColumn = new ArrayList<>(Collections.nCopies(width, null));
+    }
+
+    /**
+     * @return true iff no range is registered.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Registers a range the given cell depends on.
+     *
+     * @param dependent the cell whose formula aggregates the range.
+     * @param range the range, within the spreadsheet's columns.
+     */
+    public void add(SCell dependent, Formula.Aggregate range) {
+        for (int x = range.getX1(); x <= range.getX2() && x < byColumn.size(); x++) {
+            if (byColumn.get(x) == null) {
+                byColumn.set(x, new ArrayList<>());
+            }
+            byColumn.get(x).add(new Entry(dependent, range));
+        }
+        size++;
+    }
+
+    /**
+     * Removes a range registered by add().
+     *
+     * @param dependent the cell whose formula aggregates the range.
+     * @param range the range.
+     */
+    public void remove(SCell dependent, Formula.Aggregate range) {
+        for (int x = range.getX1(); x <= range.getX2() && x < byColumn.size(); x++) {
+            ArrayList<Entry> entries = byColumn.get(x);
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                if (entries.get(i).dependent() == dependent && entries.get(i).range() == range) {
+                    entries.remove(i);
+                    break;
+                }
+            }
+            if (entries.isEmpty()) {
+                byColumn.set(x, null);
+            }
+        }
+        size--;
+    }
+
+    /**
+     * Adds to the list the cells which depend on the x,y cell through a range, once per range.
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @param ans the list to fill.
+     */
+    public void collectDependents(int x, int y, ArrayList<SCell> ans) {
+        ArrayList<Entry> entries = x < byColumn.size() ? byColumn.get(x) : null;
+        if (entries != null) {
+            for (Entry e : entries) {
+                if (e.range().contains(x, y)) {
+                    ans.add(e.dependent());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/**
+ * Schedules the recalculation of a spreadsheet by priority: the cells of a region (the viewport of a GUI)
+ * are computed first, and the rest of the sheet is finished later, in small steps.
+ * The sheet is switched to the on-demand mode (see Ex2Sheet.setOnDemand()), so an edit or a load only marks
+ * the affected formulas stale. computeViewport() computes the stale cells of the viewport with their precedent
+ * cones, and runBackground() computes the other stale cells until its time budget is used up.
+ * The steps run on the thread which owns the sheet (e.g. between two frames of the GUI), so the sheet is never
+ * accessed concurrently, and a frame is never delayed by more than a single step.
+ */
+public class RecalcScheduler {
+    /**
+     * The default number of cells computed by a single background step.
+     */
+    public static final int DEFAULT_STEP = 256;
+    private final Ex2Sheet sheet;
+    // the viewport, inclusive
+    private int x1, y1, x2, y2;
+    private int step = DEFAULT_STEP;
+
+    private RecalcScheduler(Ex2Sheet sheet) {
+        this.sheet = sheet;
+        this.x2 = sheet.width() - 1;
+        this.y2 = sheet.height() - 1;
+    }
+
+    /**
+     * Creates a scheduler of the given sheet, whose viewport is the whole sheet, and turns its on-demand mode on.
+     *
+     * @param sheet the spreadsheet.
+     * @return the scheduler of the sheet.
+     */
+    public static RecalcScheduler attach(Ex2Sheet sheet) {
+        RecalcScheduler scheduler = new RecalcScheduler(sheet);
+        sheet.setOnDemand(true);
+        return scheduler;
+    }
+
+    /**
+     * Sets the region whose cells are computed first. The region is clipped to the sheet.
+     *
+     * @param fromX the first column.
+     * @param fromY the first row.
+     * @param toX the last column (inclusive).
+     * @param toY the last row (inclusive).
+     */
+    public void setViewport(int fromX, int fromY, int toX, int toY) {
+        this.x1 = Math.max(0, fromX);
+        this.y1 = Math.max(0, fromY);
+        this.x2 = Math.min(sheet.width() - 1, toX);
+        this.y2 = Math.min(sheet.height() - 1, toY);
+    }
+
+    /**
+     * Sets the number of cells computed by a single background step.
+     *
+     * @param cells the step size (at least 1).
+     */
+    public void setStep(int cells) {
+        this.step = Math.max(1, cells);
+    }
+
+    /**
+     * Computes every stale cell of the viewport, with its stale precedents.
+     *
+     * @return the number of computed cells.
+     */
+    public int computeViewport() {
+        int ans = 0;
+        for (int x = x1; x <= x2; x++) {
+            for (int y = y1; y <= y2; y++) {
+                ans += sheet.compute(x, y);
+            }
+        }
+        return ans;
+    }
+
+    /**
+     * Computes stale cells outside of the viewport (and anything left in it) in steps,
+     * until no cell is stale or the time budget is used up. A step which started is always finished.
+     *
+     * @param budgetNanos the time budget.
+     * @return true iff no cell is stale.
+     */
+    public boolean runBackground(long budgetNanos) {
+        long start = System.nanoTime();
+        while (!isDone() && System.nanoTime() - start < budgetNanos) {
+            if (sheet.computePending(step) == 0) {
+                break;
+            }
+        }
+        return isDone();
+    }
+
+    /**
+     * Returns true iff every cell of the sheet is up to date.
+     *
+     * @return true if nothing is left to compute.
+     */
+    public boolean isDone() {
+        return sheet.isEvaluated();
+    }
+}
@@ -1,5 +1,6 @@
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Collection;
+import java.util.HashSet;
 
 /**
  * Represents a cell in the spreadsheet with additional functionality for handling formulas and cycles.
@@ -13,9 +14,31 @@ public class SCell implements Cell {
     private Ex2Sheet sheet;
     public CellEntry entry;
     private int order;
-    private boolean isVisited = false;
-    private boolean isCalculating = false;
-    private int calculatedOrder = -2;
+    // the data parsed once by setData
+    private int dataType;
+    private double number;
+    private Formula formula;
+    private ArrayList<Formula.Ref> formulaRefs = new ArrayList<>();
+    private ArrayList<Formula.Aggregate> formulaRanges = new ArrayList<>();
+    // the dependency graph, maintained by Ex2Sheet.set
+    private int x = -1, y = -1;
+    private ArrayList<SCell> precedents = new ArrayList<>();
+    private HashSet<SCell> dependents = new HashSet<>();
+    // set by CycleDetector
+    private boolean onCycle = false;
+    // set by Ex2Sheet in on-demand mode, while the result of the formula is out of date
+    private boolean stale = false;
+    // the position of this cell in the sheet's DynamicTopoOrder
+    private int topoIndex;
+    // the result of the last computation, valid while the sheet's version is unchanged
+    private double result;
+    private int resultError;
+    private int resultVersion = -1;
+    // the number of nodes Formula.simplify() removed from the parsed formula
+    private int foldedNodes;
+    // the number of times the formula was computed, and its compiled form (see FormulaCompiler)
+    private int evaluations;
+    private FormulaCompiler.Compiled compiled;
 
     /**
      * Constructs an SCell with the specified data and associated sheet.
@@ -37,6 +60,19 @@ public class SCell implements Cell {
         this.value = v;
     }
 
+    /**
+     * Returns the value of the cell, as computed by the last evaluation.
+     * If the sheet keeps its results in columns, the string is made from the column value.
+     *
+     * @return the string to present for this cell.
+     */
+    public String getValue() {
+        if (sheet != null && sheet.isColumnar() && x >= 0) {
+            return sheet.value(x, y);
+        }
+        return this.value;
+    }
+
     /**
      * Sets the entry associated with the cell.
      *
@@ -44,6 +80,118 @@ public class SCell implements Cell {
      */
     public void setEntry(CellEntry e){
         this.entry = e;
+        this.x = e.getX();
+        this.y = e.getY();
+    }
+
+    /**
+     * Returns the packed coordinate of this cell (see CellAddress.pack).
+     *
+     * @return the coordinate, as set by its entry.
+     */
+    public long getCoordinate() {
+        return CellAddress.pack(x, y);
+    }
+
+    // the dimensions the references of this cell may address
+    private int addressWidth() {
+        return sheet == null ? CellAddress.CLASSIC_WIDTH : sheet.addressWidth();
+    }
+
+    private int addressHeight() {
+        return sheet == null ? CellAddress.CLASSIC_HEIGHT : sheet.addressHeight();
+    }
+
+    /**
+     * Returns the x coordinate (column) of this cell, as set by its entry.
+     *
+     * @return the column index, or -1 if no entry was set.
+     */
+    public int getX() {
+        return x;
+    }
+
+    /**
+     * Returns the y coordinate (row) of this cell, as set by its entry.
+     *
+     * @return the row index, or -1 if no entry was set.
+     */
+    public int getY() {
+        return y;
+    }
+
+    /**
+     * Returns the cells this cell's formula refers to (its precedents in the dependency graph).
+     *
+     * @return the list of precedents.
+     */
+    public ArrayList<SCell> getPrecedents() {
+        return precedents;
+    }
+
+    /**
+     * Sets the cells this cell's formula refers to.
+     *
+     * @param p the list of precedents.
+     */
+    public void setPrecedents(ArrayList<SCell> p) {
+        this.precedents = p;
+    }
+
+    /**
+     * Returns the cells whose formulas refer directly to this cell.
+     *
+     * @return the set of direct dependents.
+     */
+    public HashSet<SCell> getDependents() {
+        return dependents;
+    }
+
+    /**
+     * Returns the range functions of this cell's formula (e.g., SUM(A0:A99)).
+     *
+     * @return the list of ranges, empty if the formula has none.
+     */
+    public ArrayList<Formula.Aggregate> getRanges() {
+        return formulaRanges;
+    }
+
+    /**
+     * Returns all the cells which must be computed after this one: its dependents,
+     * and the cells whose range functions cover this cell.
+     *
+     * @return the successors of this cell in the dependency graph (a cell may appear once per range).
+     */
+    public Collection<SCell> getSuccessors() {
+        return sheet == null ? dependents : sheet.successors(this);
+    }
+
+    /**
+     * Returns the least depth of this cell due to its range functions: 1 if one of its ranges covers a part of
+     * the sheet, whether any of the covered cells is stored or not (a dense sheet stores them all, at a depth
+     * of at least 0), and 0 otherwise. So the depth of a range function does not depend on the storage mode.
+     *
+     * @return 1 for a cell with a range within the sheet, 0 otherwise.
+     */
+    public int getRangeDepth() {
+        if (sheet != null) {
+            for (Formula.Aggregate r : formulaRanges) {
+                if (r.getX1() < sheet.width() && r.getY1() < sheet.height()) {
+                    return 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns all the cells which must be computed before this one: its precedents,
+     * and the stored cells of its range functions.
+     *
+     * @return the predecessors of this cell in the dependency graph (a cell may appear once per range).
+     */
+    public Collection<SCell> getPredecessors() {
+        return sheet == null ? precedents : sheet.predecessors(this);
     }
 
     /**
@@ -58,12 +206,77 @@ public class SCell implements Cell {
 
     /**
      * Sets the data for the cell.
+     * A formula is parsed into an expression tree only when the data actually changes.
      *
      * @param s the data to set.
      */
     @Override
     public void setData(String s) {
+        if (s != null && s.equals(line)) {
+            return;
+        }
+        reset(s);
+        if (s == null || s.isEmpty()) {
+            dataType = Ex2Utils.TEXT;
+        } else if (s.charAt(0) == '=') {
+            dataType = Ex2Utils.ERR_FORM_FORMAT;
+            if (isForm(s)) {
+                try {
+                    Formula tree = Formula.parseTree(s, addressWidth(), addressHeight());
+                    formula = tree.simplify();
+                    foldedNodes = tree.size() - formula.size();
+                    if (sheet != null && sheet.getMetrics() != null) {
+                        sheet.getMetrics().parsed(tree.size(), formula.size());
+                    }
+                    formula.collectReferences(formulaRefs);
+                    formula.collectRanges(formulaRanges);
+                    dataType = Ex2Utils.FORM;
+                } catch (ErrorForm e) {
+                    formula = null;
+                }
+            }
+        } else if (isNumber(s)) {
+            dataType = Ex2Utils.NUMBER;
+            number = Double.parseDouble(s);
+        } else {
+            dataType = Ex2Utils.TEXT;
+        }
+        type = dataType;
+    }
+
+    /**
+     * Sets the data of the cell with its classification known in advance (see SheetSnapshot),
+     * so it is neither classified nor parsed again.
+     *
+     * @param s the data to set.
+     * @param dataType the type of the data: TEXT, NUMBER, FORM or ERR_FORM_FORMAT.
+     * @param number the number of a NUMBER.
+     * @param f the parsed formula of a FORM (a formula tree may be shared by the cells with the same data).
+     */
+    public void restoreData(String s, int dataType, double number, Formula f) {
+        reset(s);
+        this.dataType = dataType;
+        this.number = number;
+        if (f != null) {
+            formula = f;
+            f.collectReferences(formulaRefs);
+            f.collectRanges(formulaRanges);
+        }
+        type = dataType;
+    }
+
+    /**
+     * Sets the text of the cell and drops everything derived from the previous one.
+     */
+    private void reset(String s) {
         line = s;
+        formula = null;
+        formulaRefs = new ArrayList<>();
+        formulaRanges = new ArrayList<>();
+        resultVersion = -1;
+        foldedNodes = 0;
+        evaluations = 0;
+        compiled = null;
     }
 
     /**
@@ -117,115 +330,95 @@ public class SCell implements Cell {
     }
 
     /**
-     * Resets the visited state of the cell, allowing it to be recalculated.
+     * Returns the position of this cell in the topological order of its sheet.
+     *
+     * @return the topo index.
      */
-    public void resetVisited() {
-        isVisited = false;
-        isCalculating = false;
-        calculatedOrder = -2;
+    public int getTopoIndex() {
+        return topoIndex;
     }
 
     /**
-     * Detects if there is a cycle in the cell's references.
+     * Sets the position of this cell in the topological order of its sheet.
      *
-     * @param path the current path of cell references.
-     * @return true if a cycle is detected, false otherwise.
+     * @param i the topo index.
      */
-    public boolean detectCycle(ArrayList<String> path) {
-        if (isCalculating) {
-            return true;
-        }
-        if (isVisited) {
-            return false;
-        }
-
-        isCalculating = true;
-        if (entry != null) {
-            path.add(this.entry.getIndex());
-        }
-
-        ArrayList<SCell> refs = getReferences(this.getData());
-        for (SCell ref : refs) {
-            if (ref != null && ref.detectCycle(path)) {
-                return true;
-            }
-        }
-
-        if (entry != null) {
-            path.remove(this.entry.getIndex());
-        }
-        isCalculating = false;
-        isVisited = true;
-        return false;
+    public void setTopoIndex(int i) {
+        this.topoIndex = i;
     }
 
     /**
-     * Calculates the order of the cell's references for evaluation.
+     * Sets the type of the cell and memoizes the result of its formula as saved with it (see SheetSnapshot),
+     * as if computeForm() had computed it in the given version of the sheet.
+     * An error result is not memoized, it is computed again if it is needed.
      *
-     * @return the calculated order, or -1 if a cycle is detected, or -2 if an error occurs.
+     * @param t the type of the result.
+     * @param r the numeric result of a FORM.
+     * @param version the version of the sheet the result is valid for.
      */
-    public int calcOrder() {
-        if (calculatedOrder != -2) {
-            return calculatedOrder;
-        }
-
-        if (isCalculating) {
-            return -1;
+    public void restoreResult(int t, double r, int version) {
+        type = t;
+        if (formula != null && t == Ex2Utils.FORM) {
+            result = r;
+            resultError = 0;
+            resultVersion = version;
         }
+    }
 
-        String str = this.getData();
-        if (str == null || str.isEmpty() || type == Ex2Utils.TEXT || type == Ex2Utils.NUMBER) {
-            calculatedOrder = 0;
-            return 0;
-        }
-        if (type == Ex2Utils.ERR_FORM_FORMAT) {
-            calculatedOrder = -2;
-            return -2;
-        }
-        if (type == Ex2Utils.ERR_CYCLE_FORM) {
-            calculatedOrder = -1;
-            return -1;
+    /**
+     * Keeps the memoized result (if it was valid in the previous version of the sheet) for the given version,
+     * used when the cell is not evaluated again since none of its precedents changed.
+     *
+     * @param version the current version of the sheet.
+     */
+    public void keepResult(int version) {
+        if (resultVersion == version - 1) {
+            resultVersion = version;
         }
+    }
 
-        isCalculating = true;
-        ArrayList<SCell> refs = getReferences(str);
-        ArrayList<Integer> depends = new ArrayList<>();
+    /**
+     * Drops the memoized result, so the next computeForm() computes the formula again.
+     */
+    public void invalidateResult() {
+        resultVersion = -1;
+    }
 
-        for (SCell ref : refs) {
-            if (ref == null) {
-                calculatedOrder = -2;
-                isCalculating = false;
-                return -2;
-            }
-            int depend = ref.calcOrder();
-            if (depend == -1) {
-                calculatedOrder = -1;
-                isCalculating = false;
-                return -1;
-            }
-            if (depend == -2) {
-                calculatedOrder = -2;
-                isCalculating = false;
-                return -2;
-            }
-            depends.add(depend);
-        }
+    /**
+     * Returns true iff this cell is on a reference cycle (as found by the last CycleDetector pass).
+     *
+     * @return true if the cell is a member of a cycle.
+     */
+    public boolean isOnCycle() {
+        return onCycle;
+    }
 
-        isCalculating = false;
+    /**
+     * Marks this cell as on (or off) a reference cycle.
+     *
+     * @param c true if the cell is a member of a cycle.
+     */
+    public void setOnCycle(boolean c) {
+        this.onCycle = c;
+    }
 
-        if (depends.isEmpty()) {
-            calculatedOrder = 0;
-            return 0;
-        }
+    /**
+     * Returns true iff the result of this cell is out of date, and is computed only when the cell is read
+     * (see Ex2Sheet.setOnDemand()).
+     *
+     * @return true if the cell is stale.
+     */
+    public boolean isStale() {
+        return stale;
+    }
 
-        int max = 0;
-        for (Integer depend : depends) {
-            if (depend > max) {
-                max = depend;
-            }
-        }
-        calculatedOrder = max + 1;
-        return max + 1;
+    /**
+     * Marks the result of this cell as out of date (or as up to date).
+     *
+     * @param s true if the cell is stale.
+     */
+    public void setStale(boolean s) {
+        this.stale = s;
     }
 
     /**
@@ -276,13 +469,25 @@ public class SCell implements Cell {
 
             // בדיקת תקינות תאים
             if (isLetter(currentChar)) {
+                int nameEnd = i;
+                while (nameEnd < str.length() && isLetter(str.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                if (nameEnd < str.length() && str.charAt(nameEnd) == '(') {
+                    // a range function, e.g., SUM(A0:A99)
+                    int close = correctClosedBracket(str, nameEnd);
+                    if (Formula.Aggregate.function(str, i, nameEnd) == -1 || close == -1
+                            || !isRange(str, nameEnd + 1, close)) {
+                        return false;
+                    }
+                    i = close - 1;
+                    continue;
+                }
                 int index = closestOpOrBrackets(str, i);
                 if (index == -1 || index == i) {
                     return false;
                 }
-                String cellRef = str.substring(i, index);
-                CellEntry current = new CellEntry(cellRef);
-                if (!current.isValid()) {
+                if (CellAddress.parse(str, i, index, addressWidth(), addressHeight()) == CellAddress.INVALID) {
                     return false;
                 }
                 i = index - 1;  // קפיצה קדימה לסוף הפניית התא
@@ -342,8 +547,29 @@ public class SCell implements Cell {
         return true;
     }
 
+    /**
+     * Checks if [from, to) of the given string is a range: an address, or two addresses separated by ':'.
+     *
+     * @param str the string to check.
+     * @param from the start of the range.
+     * @param to the end of the range.
+     * @return true if the range is valid.
+     */
+    private boolean isRange(String str, int from, int to) {
+        int colon = str.indexOf(':', from);
+        if (colon == -1 || colon >= to) {
+            colon = to;
+        }
+        if (CellAddress.parse(str, from, colon, addressWidth(), addressHeight()) == CellAddress.INVALID) {
+            return false;
+        }
+        return colon == to || CellAddress.parse(str, colon + 1, to, addressWidth(), addressHeight()) != CellAddress.INVALID;
+    }
+
     /**
      * Computes the result of a formula expression.
+     * The cell's own data is evaluated using its cached expression tree,
+     * any other expression is parsed before it is evaluated.
      *
      * @param expression the formula to compute.
      * @return the result of the formula.
@@ -351,191 +577,109 @@ public class SCell implements Cell {
      * @throws ErrorCycle if a cycle is detected in the formula.
      */
     public double computeForm(String expression) throws ErrorForm, ErrorCycle {
-        expression = expression.replaceAll(" ", "").toUpperCase();
-        if (expression.isEmpty()) {
-            throw new ErrorForm("EmptyExpression");
+        if (expression != null && expression.equals(line)) {
+            return computeForm();
         }
-        if (expression.charAt(0) == '=') {
-            expression = expression.substring(1);
-        }
-
-        // Handle binary operations first (before brackets)
-        int lastIndex = -1;
-        char lastOp = ' ';
-
-        // Find last valid operator (ignoring operators inside brackets)
-        int bracketCount = 0;
-        for (int i = expression.length() - 1; i >= 0; i--) {
-            char c = expression.charAt(i);
-            if (c == ')') bracketCount++;
-            if (c == '(') bracketCount--;
-            if (bracketCount == 0 && (c == '+' || c == '-' || c == '*' || c == '/')) {
-                // For minus, check if it's a binary operator and not unary
-                if (c == '-' && i > 0 && !isOp(expression.charAt(i-1))) {
-                    lastIndex = i;
-                    lastOp = c;
-                    break;
-                }
-                // For other operators
-                if (c != '-') {
-                    lastIndex = i;
-                    lastOp = c;
-                    break;
-                }
-            }
+        if (expression == null) {
+            throw new ErrorForm("EmptyExpression");
         }
+        return Formula.parse(expression).eval(this.sheet);
+    }
 
-        // Handle binary operations
-        if (lastIndex >= 0) {
-            String leftPart = expression.substring(0, lastIndex);
-            String rightPart = expression.substring(lastIndex + 1);
-
-            // If left part is empty (like in case of "10-3"), treat it as "0"
-            if (leftPart.isEmpty()) leftPart = "0";
-
-            switch(lastOp) {
-                case '+': return computeForm(leftPart) + computeForm(rightPart);
-                case '-': return computeForm(leftPart) - computeForm(rightPart);
-                case '*': return computeForm(leftPart) * computeForm(rightPart);
-                case '/':
-                    double divisor = computeForm(rightPart);
-                    if (divisor == 0) return Double.POSITIVE_INFINITY;
-                    return computeForm(leftPart) / divisor;
-            }
+    /**
+     * Computes the numeric value of this cell's data by walking its cached expression tree.
+     * The result (or the error) is memoized until the sheet's version changes,
+     * so within one recalculation every formula is computed at most once.
+     * Once the formula was computed as many times as the sheet's compile threshold,
+     * it is compiled (see FormulaCompiler) and the compiled form is used from then on.
+     *
+     * @return the number (for a number cell) or the result of the formula (for a formula cell).
+     * @throws ErrorForm if the cell is not a number or a valid formula.
+     * @throws ErrorCycle if a cycle is detected in the formula.
+     */
+    public double computeForm() throws ErrorForm, ErrorCycle {
+        if (dataType == Ex2Utils.NUMBER) {
+            return number;
         }
-
-        // Handle brackets
-        if (expression.contains("(")) {
-            int openIndex = expression.indexOf("(");
-            int closeIndex = correctClosedBracket(expression, openIndex);
-            if (closeIndex == -1) {
-                throw new ErrorForm("InvalidBrackets");
+        if (formula == null) {
+            throw new ErrorForm("InvalidExpression");
+        }
+        int version = this.sheet.getVersion();
+        if (resultVersion == version) {
+            if (sheet.getMetrics() != null) {
+                sheet.getMetrics().cacheHit();
             }
-
-            String before = expression.substring(0, openIndex);
-            String inside = expression.substring(openIndex + 1, closeIndex);
-            String after = expression.substring(closeIndex + 1);
-
-            double resultInside = computeForm(inside);
-
-            // Handle negative before parentheses
-            if (before.endsWith("-")) {
-                resultInside = -resultInside;
-                before = before.substring(0, before.length() - 1);
+            if (resultError == Ex2Utils.ERR_CYCLE_FORM) {
+                throw new ErrorCycle("ErrorCycle");
+            } else if (resultError == Ex2Utils.ERR_FORM_FORMAT) {
+                throw new ErrorForm("ErrorForm");
             }
-
-            expression = before + resultInside + after;
-            return computeForm(expression);
+            return result;
         }
-
-        if (noOps(expression)) {
-            // Handle single negative number or negative cell reference
-            if (expression.charAt(0) == '-') {
-                String rest = expression.substring(1);
-                if (isLetter(rest.charAt(0))) {
-                    SCell cell = (SCell) this.sheet.get(rest);
-                    if (cell == null || cell.getData().isEmpty()) {
-                        throw new ErrorForm("NoCellFound");
-                    }
-
-                    ArrayList<String> cyclePath = new ArrayList<>();
-                    if (cell.detectCycle(cyclePath)) {
-                        throw new ErrorCycle("ErrorCycle");
-                    }
-
-                    int cellType = cell.getType();
-                    if (cellType == Ex2Utils.ERR_CYCLE_FORM) {
-                        throw new ErrorCycle("ErrorCycle");
-                    } else if (cellType == Ex2Utils.ERR_FORM_FORMAT) {
-                        throw new ErrorForm("ErrorForm");
-                    } else if (cellType == Ex2Utils.TEXT) {
-                        throw new ErrorForm("TextCell");
-                    }
-
-                    if (cellType == Ex2Utils.NUMBER) {
-                        return -Double.parseDouble(cell.getData());
-                    } else {
-                        return -cell.computeForm(cell.getData());
+        try {
+            if (compiled != null) {
+                result = compiled.eval(this.sheet);
+            } else {
+                result = formula.eval(this.sheet);
+                int threshold = this.sheet.getCompileThreshold();
+                if (threshold > 0 && ++evaluations >= threshold) {
+                    compiled = FormulaCompiler.compile(formula);
+                    if (sheet.getMetrics() != null) {
+                        sheet.getMetrics().compiled();
                     }
                 }
-                try {
-                    return -Double.parseDouble(rest);
-                } catch (NumberFormatException e) {
-                    throw new ErrorForm("InvalidNumber");
-                }
             }
-
-            if (isLetter(expression.charAt(0))) {
-                SCell cell = (SCell) this.sheet.get(expression);
-                if (cell == null || cell.getData().isEmpty()) {
-                    throw new ErrorForm("NoCellFound");
-                }
-
-                ArrayList<String> cyclePath = new ArrayList<>();
-                if (cell.detectCycle(cyclePath)) {
-                    throw new ErrorCycle("ErrorCycle");
-                }
-
-                int cellType = cell.getType();
-                if (cellType == Ex2Utils.ERR_CYCLE_FORM) {
-                    throw new ErrorCycle("ErrorCycle");
-                } else if (cellType == Ex2Utils.ERR_FORM_FORMAT) {
-                    throw new ErrorForm("ErrorForm");
-                } else if (cellType == Ex2Utils.TEXT) {
-                    throw new ErrorForm("TextCell");
-                }
-
-                if (cellType == Ex2Utils.NUMBER) {
-                    return Double.parseDouble(cell.getData());
-                } else {
-                    return cell.computeForm(cell.getData());
-                }
+            resultError = 0;
+            if (foldedNodes > 0 && sheet.getMetrics() != null) {
+                sheet.getMetrics().foldedEvaluation(foldedNodes);
             }
+        } catch (ErrorCycle e) {
+            resultError = Ex2Utils.ERR_CYCLE_FORM;
+            throw e;
+        } catch (ErrorForm e) {
+            resultError = Ex2Utils.ERR_FORM_FORMAT;
+            throw e;
+        } finally {
+            resultVersion = version;
+        }
+        return result;
+    }
 
-            try {
-                return Double.parseDouble(expression);
-            } catch (NumberFormatException e) {
-                throw new ErrorForm("InvalidNumber");
-            }
-        }
-
-        throw new ErrorForm("InvalidExpression");
+    /**
+     * Returns true iff this cell's formula was compiled (see computeForm()).
+     *
+     * @return true if the compiled form of the formula is used.
+     */
+    public boolean isCompiled() {
+        return compiled != null;
     }
-    private int findLastIndex(String expression, String operator) {
-        for (int i = expression.length() - 1; i >= 0; i--) {
-            if (expression.charAt(i) == operator.charAt(0)) {
-                if (operator.equals("-") && i == 0) {
-                    continue;
-                }
-                return i;
-            }
-        }
-        return -1;
+
+    /**
+     * Returns the expression tree of this cell.
+     *
+     * @return the compiled formula, or null if the cell does not hold a valid formula.
+     */
+    public Formula getFormula() {
+        return formula;
     }
-    private int findLastOperator(String expression, char operator) {
-        int bracketCount = 0;
-        int lastIndex = -1;
 
-        for (int i = 0; i < expression.length(); i++) {
-            char c = expression.charAt(i);
+    /**
+     * Returns the number parsed from this cell's data.
+     *
+     * @return the number of a NUMBER cell (0 for any other cell).
+     */
+    public double getNumber() {
+        return number;
+    }
 
-            if (c == '(') {
-                bracketCount++;
-            } else if (c == ')') {
-                bracketCount--;
-            } else if (bracketCount == 0 && c == operator) {
-                // For minus, make sure it's not a unary minus
-                if (operator == '-') {
-                    // Check if it's not at the start and not after another operator
-                    if (i > 0 && !isOp(expression.charAt(i-1))) {
-                        lastIndex = i;
-                    }
-                } else {
-                    lastIndex = i;
-                }
-            }
-        }
-        return lastIndex;
+    /**
+     * Returns the type implied by the cell's data (TEXT, NUMBER, FORM or ERR_FORM_FORMAT),
+     * regardless of the evaluation errors (e.g., cycles) found later on.
+     *
+     * @return the type of the data of this cell.
+     */
+    public int getDataType() {
+        return dataType;
     }
 
     /**
@@ -611,8 +755,7 @@ public class SCell implements Cell {
      * @return true if the character is a valid letter.
      */
     public static boolean isLetter(char c){
-        String ABC = "ABCDEFGHIJKLMNOPQRSTUVWXYZ";
-        return ABC.indexOf(c) != -1;
+        return c >= 'A' && c <= 'Z';
     }
 
     /**
@@ -622,8 +765,7 @@ public class SCell implements Cell {
      * @return true if the character is a valid digit.
      */
     public static boolean isDigit(char c){
-        String digits = "0123456789";
-        return digits.indexOf(c) != -1;
+        return c >= '0' && c <= '9';
     }
 
     /**
@@ -678,6 +820,9 @@ public class SCell implements Cell {
      * @return a list of cells that are referenced in the string.
      */
     public ArrayList<SCell> getReferences(String str) {
+        if (str != null && str.equals(line)) {
+            return getReferences();
+        }
         ArrayList<SCell> references = new ArrayList<>();
         if (str == null || str.isEmpty()) {
             return references;
@@ -691,13 +836,10 @@ public class SCell implements Cell {
         for (int i = 0; i < str.length(); i++) {
             if (isLetter(str.charAt(i))) {
                 int endIndex = closestOpOrBrackets(str, i);
-                String cellRef = str.substring(i, endIndex);
-                CellEntry entry = new CellEntry(cellRef);
-                if (entry.isValid()) {
-                    SCell refCell = (SCell) this.sheet.get(entry.getIndex());
-                    if (refCell != null) {
-                        references.add(refCell);
-                    }
+                long cord = CellAddress.parse(str, i, endIndex, addressWidth(), addressHeight());
+                if (cord != CellAddress.INVALID
+                        && CellAddress.x(cord) < this.sheet.width() && CellAddress.y(cord) < this.sheet.height()) {
+                    references.add((SCell) this.sheet.get(CellAddress.x(cord), CellAddress.y(cord)));
                 }
                 i = endIndex - 1;
             }
@@ -705,10 +847,26 @@ public class SCell implements Cell {
         return references;
     }
 
+    /**
+     * Retrieves all cell references of this cell's cached expression tree.
+     * In a sparse sheet a referenced empty coordinate gets a stored cell, so it can hold this cell as a dependent.
+     *
+     * @return a list of cells (within the sheet) that are referenced by this cell.
+     */
+    public ArrayList<SCell> getReferences() {
+        ArrayList<SCell> references = new ArrayList<>(formulaRefs.size());
+        for (Formula.Ref ref : formulaRefs) {
+            if (ref.getX() < this.sheet.width() && ref.getY() < this.sheet.height()) {
+                references.add(this.sheet.getOrCreate(ref.getX(), ref.getY()));
+            }
+        }
+        return references;
+    }
+
     /**
      * Custom exception for form errors.
      */
-    public class ErrorForm extends Exception {
+    public static class ErrorForm extends Exception {
         public ErrorForm(String errorMessage) {
             super(errorMessage);
         }
@@ -717,7 +875,7 @@ public class SCell implements Cell {
     /**
      * Custom exception for cycle errors.
      */
-    public class ErrorCycle extends Exception {
+    public static class ErrorCycle extends Exception {
         public ErrorCycle(String errorMessage) {
             super(errorMessage);
         }
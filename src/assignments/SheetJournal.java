@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A write-ahead journal of the edits of a sheet, with periodic checkpoints.
+ * Every edit (set(x, y, data), or a committed batch) is appended to the journal before it is applied,
+ * as a compact record: its length, the varints x and y, the UTF-8 data, and a CRC32.
+ * Every checkpointInterval edits the sheet is saved to the checkpoint file (as a SheetSnapshot, which keeps
+ * every text as it is, written aside and then moved into place) and the journal is truncated,
+ * so an autosave costs only the edits made since the last checkpoint.
+ * After a crash, open() loads the checkpoint and replays the journal on top of it; a record which was
+ * only partly written (or does not match its CRC) ends the journal, and is dropped.
+ */
+public class SheetJournal implements AutoCloseable {
+    /**
+     * The first 4 bytes of a journal ("EX2J").
+     */
+    public static final int MAGIC = 0x45583254;
+    /**
+     * The current version of the journal format.
+     */
+    public static final int VERSION = 1;
+    /**
+     * The default number of edits between two checkpoints.
+     */
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+    private static final int HEADER_SIZE = 8;
+
+    private final Ex2Sheet sheet;
+    private final Path checkpointFile;
+    private final Path journalFile;
+    private FileChannel channel;
+    // the payload (x, y, data) and the whole record of an edit, reused by every append
+    private ByteBuffer payload = ByteBuffer.allocate(256);
+    private ByteBuffer record = ByteBuffer.allocate(256);
+    private final CRC32 crc = new CRC32();
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private boolean sync = false;
+    // edits appended since the last checkpoint
+    private int edits = 0;
+
+    private SheetJournal(Ex2Sheet sheet, Path checkpointFile, Path journalFile) {
+        this.sheet = sheet;
+        this.checkpointFile = checkpointFile;
+        this.journalFile = journalFile;
+    }
+
+    /**
+     * Opens the journal of a sheet: loads the checkpoint (if there is one) into the sheet, replays the journal
+     * (if there is one) on top of it, and attaches the journal to the sheet, so its next edits are appended.
+     *
+     * @param sheet the sheet.
+     * @param checkpointFile the checkpoint, a snapshot or any other format Ex2Sheet.load() reads.
+     * @param journalFile the journal.
+     * @return the journal, which should be closed with the sheet.
+     * @throws IOException if the files can not be read or written.
+     */
+    public static SheetJournal open(Ex2Sheet sheet, Path checkpointFile, Path journalFile) throws IOException {
+        SheetJournal journal = new SheetJournal(sheet, checkpointFile, journalFile);
+        if (Files.exists(checkpointFile)) {
+            sheet.load(checkpointFile.toString());
+        } else {
+            sheet.clearTable();
+        }
+        journal.channel = FileChannel.open(journalFile, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (journal.channel.size() < HEADER_SIZE) {
+            journal.truncate();
+        } else {
+            journal.replay();
+        }
+        sheet.setJournal(journal);
+        return journal;
+    }
+
+    /**
+     * Sets the number of edits between two checkpoints.
+     *
+     * @param edits the interval, at least 1.
+     */
+    public void setCheckpointInterval(int edits) {
+        this.checkpointInterval = Math.max(1, edits);
+    }
+
+    /**
+     * @return the number of edits between two checkpoints.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Forces every record to the storage device before its edit is applied (off by default).
+     * Without it a record survives a crash of the process, but not necessarily a crash of the machine.
+     *
+     * @param s true to force every record.
+     */
+    public void setSync(boolean s) {
+        this.sync = s;
+    }
+
+    /**
+     * Returns the number of edits in the journal, since the last checkpoint.
+     *
+     * @return the edits to replay after a crash.
+     */
+    public int getEditCount() {
+        return edits;
+    }
+
+    /**
+     * Appends an edit to the journal (called by the sheet before it applies the edit).
+     *
+     * @param x the column index.
+     * @param y the row index.
+     * @param data the new data of the cell.
+     */
+    public void append(int x, int y, String data) {
+        byte[] bytes = (data == null ? "" : data).getBytes(StandardCharsets.UTF_8);
+        int max = 5 + 5 + 5 + bytes.length + 4;
+        if (record.capacity() < max) {
+            payload = ByteBuffer.allocate(Math.max(max, payload.capacity() * 2));
+            record = ByteBuffer.allocate(Math.max(max, record.capacity() * 2));
+        }
+        payload.clear();
+        putVarint(payload, x);
+        putVarint(payload, y);
+        payload.put(bytes);
+        crc.reset();
+        crc.update(payload.array(), 0, payload.position());
+        record.clear();
+        putVarint(record, payload.position());
+        record.put(payload.array(), 0, payload.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+        try {
+            while (record.hasRemaining()) {
+                channel.write(record);
+            }
+            if (sync) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        edits++;
+    }
+
+    /**
+     * Called by the sheet once appended edits were applied: takes a checkpoint if the interval has passed.
+     */
+    public void applied() {
+        if (edits >= checkpointInterval) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Saves the sheet to the checkpoint file and empties the journal.
+     * A crash in between leaves both the new checkpoint and the journal, and replaying the journal on top
+     * of the checkpoint gives the same sheet again.
+     *
+     * @throws IOException if the files can not be written.
+     */
+    public void checkpoint() throws IOException {
+        Path tmp = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        SheetSnapshot.save(sheet, tmp);
+        Files.move(tmp, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        truncate();
+    }
+
+    /**
+     * Detaches the journal from the sheet and closes it. The edits made so far stay in the journal.
+     *
+     * @throws IOException if the journal can not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (sheet.getJournal() == this) {
+            sheet.setJournal(null);
+        }
+        channel.close();
+    }
+
+    /**
+     * Empties the journal, leaving only its header.
+     */
+    private void truncate() throws IOException {
+        channel.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putInt(VERSION).flip();
+        channel.write(header, 0);
+        channel.position(HEADER_SIZE);
+        if (sync) {
+            channel.force(true);
+        }
+        edits = 0;
+    }
+
+    /**
+     * Applies the records of the journal (as a single batch), drops a torn record at its end,
+     * and positions the channel after the last valid record.
+     */
+    private void replay() throws IOException {
+        ByteBuffer in = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+        while (in.hasRemaining()) {
+            if (channel.read(in, in.position()) < 0) {
+                break;
+            }
+        }
+        in.flip();
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(journalFile + " is not a sheet journal (of a known version)");
+        }
+        int end = in.position();
+        sheet.beginBatch();
+        try {
+            while (in.hasRemaining()) {
+                int length = getVarint(in);
+                if (length < 2 || length > in.remaining() - 4) {
+                    break;
+                }
+                int payload = in.position();
+                crc.reset();
+                crc.update(in.array(), payload, length);
+                if (in.getInt(payload + length) != (int) crc.getValue()) {
+                    break;
+                }
+                int x = getVarint(in);
+                int y = getVarint(in);
+                String data = new String(in.array(), in.position(), payload + length - in.position(),
+                        StandardCharsets.UTF_8);
+                sheet.set(x, y, data);
+                in.position(payload + length + 4);
+                end = in.position();
+                edits++;
+            }
+        } finally {
+            sheet.commit();
+        }
+        channel.truncate(end);
+        channel.position(end);
+    }
+
+    private static void putVarint(ByteBuffer out, int v) {
+        while ((v & ~0x7f) != 0) {
+            out.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    /**
+     * Reads a varint, or returns -1 if it is cut off (or too long).
+     */
+    private static int getVarint(ByteBuffer in) {
+        int v = 0;
+        for (int shift = 0; shift < 32 && in.hasRemaining(); shift += 7) {
+            int b = in.get() & 0xff;
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,498 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Loads the text format written by Ex2Sheet.save(): a header line, then a "x,y,data[,remark]" line per cell.
+ * The file is streamed through a buffer of a FileChannel and the lines are parsed in place,
+ * so a line costs only the String of its data, and all the cells are inserted as a single batch
+ * (see Ex2Sheet.beginBatch()) followed by a single evaluation.
+ * loadParallel() does the same across cores, for the largest files.
+ * The lines are read exactly as the Scanner based loader did: the spaces are dropped,
+ * lines with less than three fields are skipped, and a line with a bad coordinate is reported and skipped.
+ */
+public class SheetLoader {
+    private static final int BUFFER_SIZE = 1 << 16;
+    // the bounds of the chunks of loadParallel()
+    private static final long MIN_CHUNK = 1 << 20;
+    private static final long MAX_CHUNK = 1 << 28;
+    // returned by LineParser.parseInt() for anything but a plain number
+    private static final int NOT_PLAIN = -1;
+
+    /**
+     * Receives the lines of a sheet file, in the order of the file.
+     */
+    public interface Sink {
+        /**
+         * A cell line.
+         *
+         * @param x the column index.
+         * @param y the row index.
+         * @param data the text of the cell (without spaces).
+         */
+        void cell(int x, int y, String data);
+
+        /**
+         * A line which could not be loaded.
+         *
+         * @param message the reason.
+         */
+        void error(String message);
+    }
+
+    /**
+     * What a load did: the number of lines, cells and errors, and its time.
+     */
+    public static class Stats {
+        private long lines;
+        private long cells;
+        private long errors;
+        private long nanos;
+
+        Stats() {
+        }
+
+        Stats(long lines, long cells, long errors) {
+            this.lines = lines;
+            this.cells = cells;
+            this.errors = errors;
+        }
+
+        /**
+         * @return the number of lines read, without the header.
+         */
+        public long getLines() {
+            return lines;
+        }
+
+        /**
+         * @return the number of cells set.
+         */
+        public long getCells() {
+            return cells;
+        }
+
+        /**
+         * @return the number of lines which could not be loaded.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return the time of the load, in nanoseconds.
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * Returns the throughput of the load: its lines (without the header) per second.
+         *
+         * @return the lines per second.
+         */
+        public double getLinesPerSecond() {
+            return nanos == 0 ? 0 : lines * 1e9 / nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "lines=" + lines + " cells=" + cells + " errors=" + errors
+                    + " time=" + nanos / 1000000 + "ms (" + (long) getLinesPerSecond() + " lines/s)";
+        }
+    }
+
+    /**
+     * Loads a file into a sheet, replacing all of its cells, and evaluates it.
+     * The metrics of the sheet (if any) record the load.
+     *
+     * @param sheet the sheet.
+     * @param file the file written by Ex2Sheet.save().
+     * @return what the load did.
+     * @throws IOException if the file can not be read.
+     */
+    public static Stats load(Ex2Sheet sheet, Path file) throws IOException {
+        long start = System.nanoTime();
+        Stats stats = new Stats();
+        SheetSink sink = new SheetSink(sheet, stats);
+        sheet.beginBatch();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            sheet.clearTable();
+            LineParser parser = new LineParser(true);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            boolean eof = false;
+            while (!eof) {
+                eof = channel.read(buffer) < 0;
+                int end = buffer.position();
+                int consumed = parser.parse(buffer, 0, end, eof, sink);
+                if (consumed == 0 && end == buffer.capacity()) {
+                    // a single line longer than the buffer
+                    ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                } else {
+                    buffer.flip().position(consumed);
+                    buffer.compact();
+                }
+            }
+            stats.lines = parser.getLines();
+        } finally {
+            sheet.commit();
+        }
+        return finish(sheet, stats, start);
+    }
+
+    /**
+     * Loads a file into a sheet like load(), parsing it in parallel: the file is memory mapped in chunks
+     * which end at line breaks, the chunks are parsed across the common ForkJoinPool into per-chunk cell buffers,
+     * and the buffers are merged into a single batch in the order of the file (so the result is the same as load()).
+     * Meant for large files, a small file is a single chunk.
+     *
+     * @param sheet the sheet.
+     * @param file the file written by Ex2Sheet.save().
+     * @return what the load did.
+     * @throws IOException if the file can not be read.
+     */
+    public static Stats loadParallel(Ex2Sheet sheet, Path file) throws IOException {
+        long size = Files.size(file);
+        long chunk = size / (4L * ForkJoinPool.getCommonPoolParallelism());
+        return loadParallel(sheet, file, Math.max(MIN_CHUNK, Math.min(MAX_CHUNK, chunk)));
+    }
+
+    /**
+     * loadParallel() with a given chunk size (in bytes, a chunk is extended to the end of its last line).
+     */
+    static Stats loadParallel(Ex2Sheet sheet, Path file, long chunkSize) throws IOException {
+        long start = System.nanoTime();
+        Stats stats = new Stats();
+        SheetSink sink = new SheetSink(sheet, stats);
+        sheet.beginBatch();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            sheet.clearTable();
+            ArrayList<ChunkTask> tasks = new ArrayList<>();
+            long size = channel.size();
+            for (long from = 0; from < size; ) {
+                long to = lineEnd(channel, from + chunkSize, size);
+                if (to - from > Integer.MAX_VALUE) {
+                    throw new IOException("A line of " + file + " is too long to be mapped");
+                }
+                ChunkTask task = new ChunkTask(channel, from, (int) (to - from), from == 0);
+                task.fork();
+                tasks.add(task);
+                from = to;
+            }
+            // the chunks are merged in order, while the next ones are still parsed
+            for (ChunkTask task : tasks) {
+                Cells cells = task.join();
+                cells.replay(sink);
+                stats.lines += cells.lines;
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            sheet.commit();
+        }
+        return finish(sheet, stats, start);
+    }
+
+    /**
+     * Evaluates a loaded sheet (unless the load already did) and records the load.
+     */
+    static Stats finish(Ex2Sheet sheet, Stats stats, long start) {
+        if (!sheet.isEvaluated()) {
+            sheet.eval();
+        }
+        stats.nanos = System.nanoTime() - start;
+        SheetMetrics metrics = sheet.getMetrics();
+        if (metrics != null) {
+            metrics.loaded(stats.lines, stats.nanos);
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the position after the first line break from pos - 1 on (or size if there is none).
+     */
+    private static long lineEnd(FileChannel channel, long pos, long size) throws IOException {
+        if (pos >= size) {
+            return size;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        for (long p = pos - 1; p < size; p += buffer.limit()) {
+            buffer.clear();
+            channel.read(buffer, p);
+            buffer.flip();
+            for (int i = 0; i < buffer.limit(); i++) {
+                if (buffer.get(i) == '\n') {
+                    return p + i + 1;
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Sets the cells into a sheet (within a batch), and reports the lines which could not be loaded.
+     */
+    private static class SheetSink implements Sink {
+        private final Ex2Sheet sheet;
+        private final Stats stats;
+
+        SheetSink(Ex2Sheet sheet, Stats stats) {
+            this.sheet = sheet;
+            this.stats = stats;
+        }
+
+        @Override
+        public void cell(int x, int y, String data) {
+            try {
+                sheet.set(x, y, data);
+                stats.cells++;
+            } catch (RuntimeException e) {
+                error(e.getMessage());
+            }
+        }
+
+        @Override
+        public void error(String message) {
+            stats.errors++;
+            System.out.println(message);
+        }
+    }
+
+    /**
+     * The lines of a chunk, kept in order until they are merged into the sheet.
+     * A line which could not be loaded is kept in its place, with its message instead of the data.
+     */
+    private static class Cells implements Sink {
+        private int[] xs = new int[1024];
+        private int[] ys = new int[1024];
+        private String[] texts = new String[1024];
+        private boolean[] errors = new boolean[1024];
+        private int size = 0;
+        private long lines = 0;
+
+        @Override
+        public void cell(int x, int y, String data) {
+            add(x, y, data, false);
+        }
+
+        @Override
+        public void error(String message) {
+            add(0, 0, message, true);
+        }
+
+        private void add(int x, int y, String text, boolean error) {
+            if (size == xs.length) {
+                int n = size * 2;
+                xs = Arrays.copyOf(xs, n);
+                ys = Arrays.copyOf(ys, n);
+                texts = Arrays.copyOf(texts, n);
+                errors = Arrays.copyOf(errors, n);
+            }
+            xs[size] = x;
+            ys[size] = y;
+            texts[size] = text;
+            errors[size] = error;
+            size++;
+        }
+
+        void replay(Sink sink) {
+            for (int i = 0; i < size; i++) {
+                if (errors[i]) {
+                    sink.error(texts[i]);
+                } else {
+                    sink.cell(xs[i], ys[i], texts[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Maps and parses a single chunk of the file.
+     */
+    @SuppressWarnings("serial") // a task only lives in the pool, it is never serialized
+    private static class ChunkTask extends RecursiveTask<Cells> {
+        private final FileChannel channel;
+        private final long position;
+        private final int length;
+        private final boolean header;
+
+        ChunkTask(FileChannel channel, long position, int length, boolean header) {
+            this.channel = channel;
+            this.position = position;
+            this.length = length;
+            this.header = header;
+        }
+
+        @Override
+        protected Cells compute() {
+            Cells cells = new Cells();
+            try {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                LineParser parser = new LineParser(header);
+                parser.parse(buffer, 0, length, true, cells);
+                cells.lines = parser.getLines();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return cells;
+        }
+    }
+
+    /**
+     * Parses the lines of a sheet file from a buffer, without copying the lines.
+     * A parser is not thread safe, but separate parsers may read (separate parts of) the same buffer.
+     */
+    static class LineParser {
+        private boolean header;
+        private long lines = 0;
+        // the bytes of the data field, without its spaces
+        private byte[] data = new byte[256];
+
+        /**
+         * @param header true if the first line parsed is the header of the file (and so is skipped).
+         */
+        LineParser(boolean header) {
+            this.header = header;
+        }
+
+        /**
+         * Returns the number of lines parsed so far, without the header.
+         */
+        long getLines() {
+            return lines;
+        }
+
+        /**
+         * Parses the complete lines of buffer[from, to) (absolute positions) into the sink.
+         *
+         * @param eof true if the bytes end the input, so the last line is complete even without a line break.
+         * @return the position after the last complete line parsed.
+         */
+        int parse(ByteBuffer buffer, int from, int to, boolean eof, Sink sink) {
+            int start = from;
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == '\n') {
+                    line(buffer, start, i, sink);
+                    start = i + 1;
+                }
+            }
+            if (eof && start < to) {
+                line(buffer, start, to, sink);
+                start = to;
+            }
+            return start;
+        }
+
+        private void line(ByteBuffer buffer, int from, int to, Sink sink) {
+            if (to > from && buffer.get(to - 1) == '\r') {
+                to--;
+            }
+            if (header) {
+                header = false;
+                return;
+            }
+            lines++;
+            int c1 = indexOf(buffer, ',', from, to);
+            int c2 = c1 < 0 ? -1 : indexOf(buffer, ',', c1 + 1, to);
+            if (c2 < 0 || !hasField(buffer, c2 + 1, to)) {
+                // less than three fields (trailing empty fields do not count)
+                return;
+            }
+            int x = parseInt(buffer, from, c1);
+            int y = parseInt(buffer, c1 + 1, c2);
+            try {
+                // the regular parser for anything but a plain number, for its exact result (or message)
+                if (x == NOT_PLAIN) {
+                    x = Integer.parseInt(text(buffer, from, c1));
+                }
+                if (y == NOT_PLAIN) {
+                    y = Integer.parseInt(text(buffer, c1 + 1, c2));
+                }
+            } catch (NumberFormatException e) {
+                sink.error(e.getMessage());
+                return;
+            }
+            sink.cell(x, y, data(buffer, c2 + 1, to));
+        }
+
+        private static int indexOf(ByteBuffer buffer, char c, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == c) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * Returns true iff buffer[from, to) holds anything but spaces and commas.
+         */
+        private static boolean hasField(ByteBuffer buffer, int from, int to) {
+            for (int i = from; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b != ' ' && b != ',') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Parses the digits of buffer[from, to), ignoring spaces.
+         *
+         * @return the number, or NOT_PLAIN if it is not a plain number of up to 9 digits.
+         */
+        private static int parseInt(ByteBuffer buffer, int from, int to) {
+            int ans = 0, digits = 0;
+            for (int i = from; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b == ' ') {
+                    continue;
+                }
+                if (b < '0' || b > '9' || ++digits > 9) {
+                    return NOT_PLAIN;
+                }
+                ans = ans * 10 + (b - '0');
+            }
+            return digits == 0 ? NOT_PLAIN : ans;
+        }
+
+        /**
+         * Returns the text of buffer[from, to) without its spaces.
+         */
+        private String text(ByteBuffer buffer, int from, int to) {
+            if (data.length < to - from) {
+                data = new byte[Math.max(to - from, data.length * 2)];
+            }
+            int n = 0;
+            for (int i = from; i < to; i++) {
+                byte b = buffer.get(i);
+                if (b != ' ') {
+                    data[n++] = b;
+                }
+            }
+            return new String(data, 0, n, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * Returns the data field starting at from: up to the next comma (a remark follows it) or the end of the line.
+         */
+        private String data(ByteBuffer buffer, int from, int to) {
+            int end = indexOf(buffer, ',', from, to);
+            return text(buffer, from, end < 0 ? to : end);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+import java.io.PrintStream;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms describing what the recalculation of a spreadsheet does.
+ * Metrics are off by default: a sheet without a SheetMetrics object only pays a null check per event.
+ * Counters may be updated from several threads (see the parallel evaluation mode of Ex2Sheet).
+ */
+public class SheetMetrics {
+
+    /**
+     * Receives the metrics after every recalculation (full or incremental).
+     */
+    public interface Reporter {
+        /**
+         * Reports the current metrics.
+         *
+         * @param metrics the metrics of the sheet.
+         */
+        void report(SheetMetrics metrics);
+
+        /**
+         * A reporter which prints a one line summary to the given stream.
+         *
+         * @param out the stream to print to.
+         * @return the reporter.
+         */
+        static Reporter print(PrintStream out) {
+            return m -> out.println(m);
+        }
+    }
+
+    /**
+     * A histogram of latencies in nanoseconds, with a power of two bucket per range.
+     */
+    public static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count;
+        private long sum;
+        private long max;
+
+        /**
+         * Adds a single measurement.
+         *
+         * @param nanos the measured latency.
+         */
+        public synchronized void record(long nanos) {
+            if (nanos < 0) {
+                nanos = 0;
+            }
+            buckets[64 - Long.numberOfLeadingZeros(nanos | 1) - 1]++;
+            count++;
+            sum += nanos;
+            max = Math.max(max, nanos);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMax() {
+            return max;
+        }
+
+        public synchronized double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile (the top of its bucket).
+         *
+         * @param p the percentile, in [0, 100].
+         * @return the latency (nanoseconds) below which p percent of the measurements are.
+         */
+        public synchronized long getPercentile(double p) {
+            long rank = (long) Math.ceil(count * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max, (2L << i) - 1);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "n=" + count + " mean=" + (long) getMean() + "ns p99<=" + getPercentile(99) + "ns max=" + max + "ns";
+        }
+    }
+
+    private final LongAdder fullRecalcs = new LongAdder();
+    private final LongAdder incrementalRecalcs = new LongAdder();
+    private final LongAdder cellsEvaluated = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cycleChecks = new LongAdder();
+    private final LongAdder compilations = new LongAdder();
+    private final LongAdder skippedEvaluations = new LongAdder();
+    private final LongAdder parsedNodes = new LongAdder();
+    private final LongAdder foldedNodes = new LongAdder();
+    private final LongAdder savedNodeEvaluations = new LongAdder();
+    private final LongAdder linesLoaded = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+    private final Histogram fullRecalcLatency = new Histogram();
+    private final Histogram incrementalRecalcLatency = new Histogram();
+    private Reporter reporter;
+
+    /**
+     * Sets the reporter called after every recalculation (null for none).
+     *
+     * @param r the reporter.
+     */
+    public void setReporter(Reporter r) {
+        this.reporter = r;
+    }
+
+    /**
+     * Records a full recalculation (Ex2Sheet.eval()) and reports.
+     *
+     * @param nanos its latency.
+     */
+    public void fullRecalc(long nanos) {
+        fullRecalcs.increment();
+        fullRecalcLatency.record(nanos);
+        report();
+    }
+
+    /**
+     * Records an incremental recalculation (an edit) and reports.
+     *
+     * @param nanos its latency.
+     */
+    public void incrementalRecalc(long nanos) {
+        incrementalRecalcs.increment();
+        incrementalRecalcLatency.record(nanos);
+        report();
+    }
+
+    public void cellEvaluated() {
+        cellsEvaluated.increment();
+    }
+
+    public void parsed() {
+        parses.increment();
+    }
+
+    /**
+     * Records a parse of a formula, and how much its simplification shrank the tree (see Formula.simplify()).
+     *
+     * @param nodes the nodes of the parsed tree.
+     * @param simplified the nodes of the simplified tree.
+     */
+    public void parsed(int nodes, int simplified) {
+        parses.increment();
+        parsedNodes.add(nodes);
+        foldedNodes.add(nodes - simplified);
+    }
+
+    /**
+     * Records a computation of a simplified formula, which did not evaluate the given number of folded nodes.
+     *
+     * @param nodes the nodes removed from the formula by its simplification.
+     */
+    public void foldedEvaluation(int nodes) {
+        savedNodeEvaluations.add(nodes);
+    }
+
+    public void cacheHit() {
+        cacheHits.increment();
+    }
+
+    public void cycleCheck() {
+        cycleChecks.increment();
+    }
+
+    public void compiled() {
+        compilations.increment();
+    }
+
+    /**
+     * Records a cell which was not evaluated again, since none of its precedents changed.
+     */
+    public void evaluationSkipped() {
+        skippedEvaluations.increment();
+    }
+
+    /**
+     * Records a load of a sheet file (see SheetLoader).
+     *
+     * @param lines the number of lines loaded.
+     * @param nanos the time of the load.
+     */
+    public void loaded(long lines, long nanos) {
+        linesLoaded.add(lines);
+        loadNanos.add(nanos);
+    }
+
+    public long getFullRecalcs() {
+        return fullRecalcs.sum();
+    }
+
+    public long getIncrementalRecalcs() {
+        return incrementalRecalcs.sum();
+    }
+
+    public long getCellsEvaluated() {
+        return cellsEvaluated.sum();
+    }
+
+    public long getParses() {
+        return parses.sum();
+    }
+
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    public long getCycleChecks() {
+        return cycleChecks.sum();
+    }
+
+    public long getCompilations() {
+        return compilations.sum();
+    }
+
+    public long getSkippedEvaluations() {
+        return skippedEvaluations.sum();
+    }
+
+    public long getParsedNodes() {
+        return parsedNodes.sum();
+    }
+
+    public long getFoldedNodes() {
+        return foldedNodes.sum();
+    }
+
+    /**
+     * Returns the node evaluations which the simplification of the formulas saved, over all of their computations.
+     *
+     * @return the saved node evaluations.
+     */
+    public long getSavedNodeEvaluations() {
+        return savedNodeEvaluations.sum();
+    }
+
+    public long getLinesLoaded() {
+        return linesLoaded.sum();
+    }
+
+    /**
+     * Returns the throughput of all the loads so far.
+     *
+     * @return the lines loaded per second.
+     */
+    public double getLoadLinesPerSecond() {
+        long nanos = loadNanos.sum();
+        return nanos == 0 ? 0 : getLinesLoaded() * 1e9 / nanos;
+    }
+
+    public Histogram getFullRecalcLatency() {
+        return fullRecalcLatency;
+    }
+
+    public Histogram getIncrementalRecalcLatency() {
+        return incrementalRecalcLatency;
+    }
+
+    private void report() {
+        Reporter r = reporter;
+        if (r != null) {
+            r.report(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "full=" + getFullRecalcs() + " [" + fullRecalcLatency + "]"
+                + " incremental=" + getIncrementalRecalcs() + " [" + incrementalRecalcLatency + "]"
+                + " evaluated=" + getCellsEvaluated() + " parses=" + getParses()
+                + " cacheHits=" + getCacheHits() + " cycleChecks=" + getCycleChecks()
+                + " compilations=" + getCompilations() + " skipped=" + getSkippedEvaluations()
+                + " folded=" + getFoldedNodes() + "/" + getParsedNodes() + " saved=" + getSavedNodeEvaluations()
+                + " loaded=" + getLinesLoaded() + " (" + (long) getLoadLinesPerSecond() + " lines/s)";
+    }
+}
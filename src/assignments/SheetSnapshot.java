@@ -0,0 +1,308 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * A compact binary format of a sheet, next to the text format of Ex2Sheet.save().
+ * A snapshot holds:
+ * <ul>
+ *     <li>a header: MAGIC, VERSION, the width and the height of the sheet;</li>
+ *     <li>a dictionary of the distinct texts and formulas of the cells (UTF-8);</li>
+ *     <li>a typed record per cell with data, in the order of populatedCells(): a tag, the coordinate
+ *     (the x step from the previous record, then y, or the y step if the column is the same),
+ *     and then the raw double of a number, or the dictionary id of a text or a formula.</li>
+ * </ul>
+ * Lengths, coordinates and ids are written as varints (7 bits per byte), so a record of a dense column
+ * usually takes 3 bytes and a dictionary id.
+ * Since version 2 the records may be followed by the results of an evaluated sheet: a hash of the content
+ * (the dimensions and the records), then the type, the cycle flag, the numeric value and the depth of every record.
+ * If the hash matches the content which was read, and the sheet has the dimensions of the saved one
+ * (a range function depends on them), the sheet is opened warm: the results are restored instead
+ * of evaluating the sheet, and only the cells which change later are evaluated (see Ex2Sheet.set()).
+ * A version 1 snapshot (without results) is still read.
+ * Loading a snapshot reads it sequentially, without classifying the data of the cells again,
+ * and parses every distinct formula once (the cells with the same formula share its tree).
+ */
+public class SheetSnapshot {
+    /**
+     * The first 4 bytes of a snapshot ("EX2S").
+     */
+    public static final int MAGIC = 0x45583253;
+    /**
+     * The current version of the format.
+     */
+    public static final int VERSION = 2;
+    // the record tags
+    private static final byte TEXT = 0, NUMBER = 1, NUMBER_TEXT = 2, FORM = 3, ERR_FORM = 4;
+
+    /**
+     * Writes a snapshot of the data of a sheet, with the results of its cells if it is evaluated.
+     *
+     * @param sheet the sheet.
+     * @param file the file to write.
+     * @throws IOException if the file can not be written.
+     */
+    public static void save(Ex2Sheet sheet, Path file) throws IOException {
+        ArrayList<SCell> cells = sheet.populatedCells();
+        HashMap<String, Integer> ids = new HashMap<>();
+        ArrayList<String> dictionary = new ArrayList<>();
+        for (SCell cell : cells) {
+            if (tag(cell) != NUMBER && ids.putIfAbsent(cell.getData(), dictionary.size()) == null) {
+                dictionary.add(cell.getData());
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sheet.width());
+            out.writeInt(sheet.height());
+            out.writeInt(dictionary.size());
+            for (String s : dictionary) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+            }
+            out.writeInt(cells.size());
+            ContentHash hash = new ContentHash(sheet.width(), sheet.height());
+            int px = 0, py = -1;
+            for (SCell cell : cells) {
+                byte tag = tag(cell);
+                int x = cell.getX(), y = cell.getY();
+                hash.add(x, y, tag, cell.getData());
+                out.writeByte(tag);
+                writeVarint(out, x - px);
+                writeVarint(out, x == px ? y - py : y);
+                px = x;
+                py = y;
+                if (tag == NUMBER || tag == NUMBER_TEXT) {
+                    out.writeDouble(cell.getNumber());
+                }
+                if (tag != NUMBER) {
+                    writeVarint(out, ids.get(cell.getData()));
+                }
+            }
+            boolean results = sheet.isEvaluated();
+            out.writeBoolean(results);
+            if (results) {
+                out.writeLong(hash.get());
+                for (SCell cell : cells) {
+                    writeResult(out, sheet, cell);
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads a snapshot into a sheet, replacing all of its cells, and restores its results
+     * (if it has results which match its content), or else evaluates it.
+     * The metrics of the sheet (if any) record the load, with a line per cell.
+     *
+     * @param sheet the sheet.
+     * @param file the snapshot.
+     * @return what the load did.
+     * @throws IOException if the file can not be read, is not a snapshot (of a known version),
+     * or does not fit into the sheet.
+     */
+    public static SheetLoader.Stats load(Ex2Sheet sheet, Path file) throws IOException {
+        long start = System.nanoTime();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a sheet snapshot");
+            }
+            int version = in.readInt();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unknown snapshot version " + version + " of " + file);
+            }
+            int width = in.readInt(), height = in.readInt();
+            if (width > sheet.width() || height > sheet.height()) {
+                throw new IOException("A snapshot of " + width + "x" + height + " does not fit into the sheet");
+            }
+            String[] dictionary = new String[in.readInt()];
+            for (int i = 0; i < dictionary.length; i++) {
+                byte[] bytes = new byte[readVarint(in)];
+                in.readFully(bytes);
+                dictionary[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            // each distinct formula is parsed once, when first met
+            Formula[] formulas = new Formula[dictionary.length];
+            sheet.clearTable();
+            int count = in.readInt();
+            int[] xs = new int[count], ys = new int[count];
+            ContentHash hash = new ContentHash(width, height);
+            int x = 0, y = -1;
+            for (int i = 0; i < count; i++) {
+                byte tag = in.readByte();
+                int dx = readVarint(in);
+                x += dx;
+                y = dx == 0 ? y + readVarint(in) : readVarint(in);
+                xs[i] = x;
+                ys[i] = y;
+                String text;
+                if (tag == NUMBER || tag == NUMBER_TEXT) {
+                    double d = in.readDouble();
+                    text = tag == NUMBER ? numberText(d) : dictionary[readVarint(in)];
+                    sheet.restore(x, y, text, Ex2Utils.NUMBER, d, null);
+                } else if (tag == FORM) {
+                    int id = readVarint(in);
+                    if (formulas[id] == null) {
+                        formulas[id] = parse(sheet, dictionary[id]);
+                    }
+                    text = dictionary[id];
+                    sheet.restore(x, y, text, Ex2Utils.FORM, 0, formulas[id]);
+                } else if (tag == TEXT || tag == ERR_FORM) {
+                    int type = tag == TEXT ? Ex2Utils.TEXT : Ex2Utils.ERR_FORM_FORMAT;
+                    text = dictionary[readVarint(in)];
+                    sheet.restore(x, y, text, type, 0, null);
+                } else {
+                    throw new IOException("Bad record tag " + tag + " in " + file);
+                }
+                hash.add(x, y, tag, text);
+            }
+            // the results of range functions depend on the dimensions of the sheet, so they are only
+            // restored into a sheet of the same dimensions
+            boolean sameSheet = width == sheet.width() && height == sheet.height();
+            if (version >= 2 && sameSheet && in.readBoolean() && in.readLong() == hash.get()) {
+                for (int i = 0; i < count; i++) {
+                    readResult(in, sheet, xs[i], ys[i]);
+                }
+                sheet.markEvaluated();
+            }
+            return SheetLoader.finish(sheet, new SheetLoader.Stats(count, count, 0), start);
+        }
+    }
+
+    /**
+     * Writes the result of a cell: its type, its cycle flag, the numeric value of a NUMBER or FORM, and its depth.
+     */
+    private static void writeResult(DataOutputStream out, Ex2Sheet sheet, SCell cell) throws IOException {
+        int type = cell.getType();
+        out.writeByte(type);
+        out.writeBoolean(cell.isOnCycle());
+        if (type == Ex2Utils.NUMBER) {
+            out.writeDouble(cell.getNumber());
+        } else if (type == Ex2Utils.FORM) {
+            ColumnStore columns = sheet.getColumns();
+            out.writeDouble(columns != null ? columns.getValue(cell.getX(), cell.getY())
+                    : Double.parseDouble(cell.getValue()));
+        }
+        // the depth of a cell on (or after) a cycle is -1
+        writeVarint(out, cell.getOrder() + 1);
+    }
+
+    private static void readResult(DataInputStream in, Ex2Sheet sheet, int x, int y) throws IOException {
+        int type = in.readByte();
+        boolean onCycle = in.readBoolean();
+        double number = type == Ex2Utils.NUMBER || type == Ex2Utils.FORM ? in.readDouble() : 0;
+        int depth = readVarint(in) - 1;
+        sheet.restoreResult(x, y, type, number, depth, onCycle);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the content of a snapshot: its dimensions, and the coordinate,
+     * the tag and the data of every record.
+     */
+    private static class ContentHash {
+        private long hash = 0xcbf29ce484222325L;
+
+        ContentHash(int width, int height) {
+            add(VERSION);
+            add(width);
+            add(height);
+        }
+
+        void add(int x, int y, byte tag, String data) {
+            add(x);
+            add(y);
+            add(tag);
+            for (int i = 0; i < data.length(); i++) {
+                add(data.charAt(i));
+            }
+        }
+
+        private void add(int v) {
+            hash = (hash ^ v) * 0x100000001b3L;
+        }
+
+        long get() {
+            return hash;
+        }
+    }
+
+    /**
+     * Returns true iff the file starts like a snapshot.
+     *
+     * @param file the file.
+     * @return true for a snapshot, false for a text file (or an empty one).
+     * @throws IOException if the file can not be read.
+     */
+    public static boolean isSnapshot(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            byte[] head = in.readNBytes(4);
+            return head.length == 4
+                    && ((head[0] & 0xff) << 24 | (head[1] & 0xff) << 16 | (head[2] & 0xff) << 8 | (head[3] & 0xff)) == MAGIC;
+        }
+    }
+
+    /**
+     * Returns the record tag of a cell with data.
+     */
+    private static byte tag(SCell cell) {
+        switch (cell.getDataType()) {
+            case Ex2Utils.NUMBER:
+                return numberText(cell.getNumber()).equals(cell.getData()) ? NUMBER : NUMBER_TEXT;
+            case Ex2Utils.FORM:
+                return FORM;
+            case Ex2Utils.ERR_FORM_FORMAT:
+                return ERR_FORM;
+            default:
+                return TEXT;
+        }
+    }
+
+    /**
+     * Returns the usual text of a number: without a fraction if it is a whole number.
+     * A number whose data is written differently (e.g. "1.50") keeps its text in the dictionary.
+     */
+    private static String numberText(double d) {
+        if (d == Math.rint(d) && Math.abs(d) < 1e15 && !(d == 0 && 1 / d < 0)) {
+            return Long.toString((long) d);
+        }
+        return Double.toString(d);
+    }
+
+    private static void writeVarint(DataOutputStream out, int v) throws IOException {
+        while ((v & ~0x7f) != 0) {
+            out.writeByte((v & 0x7f) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return v;
+            }
+        }
+        throw new IOException("Bad varint in a snapshot");
+    }
+
+    private static Formula parse(Ex2Sheet sheet, String s) throws IOException {
+        try {
+            return Formula.parse(s, sheet.addressWidth(), sheet.addressHeight());
+        } catch (SCell.ErrorForm e) {
+            throw new IOException("Bad formula in a snapshot: " + s);
+        }
+    }
+}
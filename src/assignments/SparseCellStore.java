@@ -0,0 +1,129 @@
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A cell store which holds only the populated coordinates, for large and mostly empty spreadsheets.
+ * The cells are kept in an open addressing hash table (linear probing) keyed by the packed x,y coordinate,
+ * so no object is allocated per lookup and the memory is proportional to the number of stored cells.
+ */
+public class SparseCellStore implements CellStore {
+    private static final float LOAD_FACTOR = 0.6f;
+    private long[] keys;
+    private SCell[] cells;
+    private int size;
+
+    /**
+     * Constructs an empty store.
+     */
+    public SparseCellStore() {
+        keys = new long[16];
+        cells = new SCell[16];
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (keys.length - 1);
+    }
+
+    @Override
+    public SCell get(int x, int y) {
+        long key = CellAddress.pack(x, y);
+        for (int i = slot(key); cells[i] != null; i = (i + 1) & (keys.length - 1)) {
+            if (keys[i] == key) {
+                return cells[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(SCell cell) {
+        if (size + 1 > keys.length * LOAD_FACTOR) {
+            resize(keys.length * 2);
+        }
+        long key = cell.getCoordinate();
+        int i = slot(key);
+        while (cells[i] != null) {
+            if (keys[i] == key) {
+                cells[i] = cell;
+                return;
+            }
+            i = (i + 1) & (keys.length - 1);
+        }
+        keys[i] = key;
+        cells[i] = cell;
+        size++;
+    }
+
+    @Override
+    public boolean remove(SCell cell) {
+        long key = cell.getCoordinate();
+        int i = slot(key);
+        while (cells[i] != null && keys[i] != key) {
+            i = (i + 1) & (keys.length - 1);
+        }
+        if (cells[i] != cell) {
+            return false;
+        }
+        // backward shift deletion: no tombstones are left behind
+        int hole = i;
+        int j = (i + 1) & (keys.length - 1);
+        while (cells[j] != null) {
+            int home = slot(keys[j]);
+            if (((j - home) & (keys.length - 1)) >= ((j - hole) & (keys.length - 1))) {
+                keys[hole] = keys[j];
+                cells[hole] = cells[j];
+                hole = j;
+            }
+            j = (j + 1) & (keys.length - 1);
+        }
+        cells[hole] = null;
+        size--;
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        SCell[] oldCells = cells;
+        keys = new long[capacity];
+        cells = new SCell[capacity];
+        for (int i = 0; i < oldCells.length; i++) {
+            if (oldCells[i] != null) {
+                int j = slot(oldKeys[i]);
+                while (cells[j] != null) {
+                    j = (j + 1) & (capacity - 1);
+                }
+                keys[j] = oldKeys[i];
+                cells[j] = oldCells[i];
+            }
+        }
+    }
+
+    @Override
+    public Iterator<SCell> iterator() {
+        return new Iterator<SCell>() {
+            private int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (i < cells.length && cells[i] == null) {
+                    i++;
+                }
+                return i < cells.length;
+            }
+
+            @Override
+            public SCell next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return cells[i++];
+            }
+        };
+    }
+}